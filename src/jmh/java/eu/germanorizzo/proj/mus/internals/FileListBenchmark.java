@@ -0,0 +1,80 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import eu.germanorizzo.proj.mus.Mus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building (addPath() and seal()) and writing a FileList, by number of entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class FileListBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    private Path[] paths;
+    private FileList sealed;
+
+    @Setup
+    public void setup() {
+        // not existing, so that addPath() doesn't find directories
+        paths = SyntheticFiles.paths(Paths.get(System.getProperty("java.io.tmpdir"),
+                "mus-benchmark-missing"), entries);
+        sealed = SyntheticFiles.list(Mus.FORMAT, paths);
+    }
+
+    @Benchmark
+    public FileList addPath() {
+        FileList ret = new FileList();
+        for (Path p : paths)
+            ret.addPath(p);
+        ret.seal();
+        return ret;
+    }
+
+    @Benchmark
+    public void writeToFile() throws IOException {
+        sealed.writeToFile(OutputStream.nullOutputStream(), false);
+    }
+
+    @Benchmark
+    public void writeToBinaryFile() throws IOException {
+        sealed.writeToFile(OutputStream.nullOutputStream(), true);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import eu.germanorizzo.proj.mus.Mus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading a synthetic checksum file, text or binary, by number of entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class ManifestBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    @Param({FileList.EXTENSION, FileList.BINARY_EXTENSION})
+    public String extension;
+
+    private Path dir;
+    private File checksum;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("mus-benchmark");
+        checksum = dir.resolve("synthetic." + extension).toFile();
+        FileList list = SyntheticFiles.list(Mus.FORMAT, SyntheticFiles.paths(dir, entries));
+        try (OutputStream os = new FileOutputStream(checksum)) {
+            list.writeToFile(os, FileList.isBinary(checksum));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(checksum.toPath());
+        Files.delete(dir);
+    }
+
+    @Benchmark
+    public Walker loadChecksumTree() throws Exception {
+        Walker ret = Walker.forChecksums(Collections.singletonList(checksum.getPath()));
+        ret.loadChecksumTree(checksum);
+        return ret;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import eu.germanorizzo.proj.mus.Mus;
+
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Synthetic file lists for the benchmarks: the files don't exist, 1000 for each directory.
+ */
+class SyntheticFiles {
+    static final int FILES_PER_DIR = 1000;
+
+    private SyntheticFiles() {
+    }
+
+    static Path[] paths(Path base, int count) {
+        Path[] ret = new Path[count];
+        for (int i = 0; i < count; i++)
+            ret[i] = base.resolve("dir" + (i / FILES_PER_DIR / 100))
+                    .resolve("sub" + (i / FILES_PER_DIR % 100))
+                    .resolve("file" + (i % FILES_PER_DIR) + ".dat");
+        return ret;
+    }
+
+    // With random checksums and sizes, as if it was loaded from a checksum file
+    static FileList list(int format, Path[] paths) {
+        FileList ret = new FileList();
+        ret.setFormat(format);
+        Random rnd = new Random(1);
+        byte[] digest = new byte[Mus.ALGO_LEN_BY_FORMAT[format] / 2];
+        for (Path p : paths) {
+            FileList.Info i = ret.addFile(p);
+            i.setSize(rnd.nextInt(1 << 30));
+            rnd.nextBytes(digest);
+            i.setChecksum(digest);
+        }
+        ret.seal();
+        return ret;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * A whole run (building the tree and checksumming it) on a generated tree of 64 Kb files,
+ * by format, number of threads and read ordering. The files are likely in the page cache, so
+ * by default this measures the CPU side; to measure a disk, generate the tree on it with
+ * -p dir=... and drop the page cache before each iteration (as root) with -p dropCaches=true.
+ * The physical order applies to rotational disks only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WalkerBenchmark {
+    private static final int FILE_SIZE = 64 << 10;
+
+    @Param({"1000", "10000"})
+    public int files;
+
+    @Param({"2", "4"})
+    public int format;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"true", "false"})
+    public boolean physicalOrder;
+
+    // Where to generate the tree; empty for the temporary directory
+    @Param({""})
+    public String dir;
+
+    @Param({"false"})
+    public boolean dropCaches;
+
+    private Path root;
+
+    @Setup
+    public void setup() throws IOException {
+        root = dir.isEmpty() ? Files.createTempDirectory("mus-benchmark")
+                : Files.createTempDirectory(Paths.get(dir), "mus-benchmark");
+        Random rnd = new Random(1);
+        byte[] data = new byte[FILE_SIZE];
+        for (Path p : SyntheticFiles.paths(root, files)) {
+            Files.createDirectories(p.getParent());
+            rnd.nextBytes(data);
+            Files.write(p, data);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void dropCaches() throws IOException, InterruptedException {
+        if (!dropCaches)
+            return;
+        new ProcessBuilder("sync").inheritIO().start().waitFor();
+        Files.write(Paths.get("/proc/sys/vm/drop_caches"), "3".getBytes());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> s = Files.walk(root)) {
+            for (Path p : (Iterable<Path>) s.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(p);
+        }
+    }
+
+    @Benchmark
+    public Walker work() throws Exception {
+        Exception[] error = new Exception[1];
+        Walker ret = Walker.forFiles(format, root.toString());
+        ret.setOnError((e) -> error[0] = e);
+        ret.setPhysicalOrder(physicalOrder);
+        ret.work(threads);
+        if (error[0] != null)
+            throw error[0];
+        return ret;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing of a file through HashContext, as the workers do, by format, size of the file and
+ * read mode: "buffered" reads, "mapped" (only files of at least 8 Mb are mapped, the others
+ * are read as in buffered) or "direct" (O_DIRECT, if the temporary directory allows it). The
+ * score is the time per file, so the throughput is fileSize / score; but note that except
+ * in direct mode, the file is read from the page cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChecksumBenchmark {
+    @Param({"1", "2", "3", "4"})
+    public int format;
+
+    @Param({"4096", "1048576", "67108864"})
+    public int fileSize;
+
+    @Param({"buffered", "mapped", "direct"})
+    public String readMode;
+
+    private Path file;
+    private HashContext ctx;
+
+    @Setup
+    public void setup() throws IOException {
+        byte[] data = new byte[fileSize];
+        new Random(1).nextBytes(data);
+        file = Files.createTempFile("mus-benchmark", ".bin");
+        Files.write(file, data);
+        ctx = new HashContext(!readMode.equals("buffered"));
+        ctx.setDirect(readMode.equals("direct"));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(file);
+    }
+
+    @Benchmark
+    public String hash() throws IOException {
+        try (FileChannel ch = ctx.open(file)) {
+            ctx.hash(format, ch, null);
+        }
+        return ctx.toHex();
+    }
+}
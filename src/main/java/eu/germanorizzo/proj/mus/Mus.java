@@ -16,7 +16,11 @@
  */
 package eu.germanorizzo.proj.mus;
 
+import eu.germanorizzo.proj.mus.digest.DigestProvider;
+import eu.germanorizzo.proj.mus.digest.JcaDigestProvider;
+import eu.germanorizzo.proj.mus.digest.Xxh3DigestProvider;
 import eu.germanorizzo.proj.mus.gfx.MainWindow;
+import eu.germanorizzo.proj.mus.internals.ChecksumVerificationFailedException;
 import eu.germanorizzo.proj.mus.internals.FileList;
 import eu.germanorizzo.proj.mus.internals.Walker;
 import eu.germanorizzo.proj.mus.internals.Walker.Status;
@@ -27,6 +31,8 @@ import java.awt.*;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.List;
 
@@ -36,49 +42,161 @@ public class Mus {
     public static final String HEADER_STRING = "Mus " + VERSION;
     private static final int CLI_REFRESH_TIMEOUT = 500;
 
-    public static final String[] ALGO_BY_FORMAT = new String[]{"", "MD5", "SHA3-256"};
-    public static final int[] ALGO_LEN_BY_FORMAT = new int[]{-1, 32, 64};
+    public static final DigestProvider[] ALGO_BY_FORMAT = new DigestProvider[]{null,
+            new JcaDigestProvider("MD5"), new JcaDigestProvider("SHA3-256"),
+            new JcaDigestProvider("SHA3-256"), new Xxh3DigestProvider()};
+    public static final int[] ALGO_LEN_BY_FORMAT = new int[]{-1, 32, 64, 64, 32};
+    // Formats with a chunk size are hashed as a tree of chunks (see HashContext)
+    public static final long[] CHUNK_SIZE_BY_FORMAT = new long[]{-1, -1, -1, 16 << 20, -1};
+
+    private static boolean streaming = false;
+    private static boolean trustCache = false;
+    private static boolean quickVerify = false;
+    private static boolean binary = false;
+    private static boolean directIO = false;
+    private static int format = FORMAT;
+    // Default for -t: 1, or VIRTUAL_THREADS with -V
+    private static int threads = -1;
+    private static final int VIRTUAL_THREADS = 128;
+    private static boolean virtualThreads = false;
+    // Limits for -l and -i; 0 = none
+    private static long bytesPerSecond = 0;
+    private static int readsPerSecond = 0;
 
     private static void doHeadless(String... args) {
         System.out.println(HEADER_STRING);
         System.out.println();
 
-        boolean doAutoFileName = args[0].equals("-a");
-        boolean doVerify = args[0].equals("-v");
+        boolean doAutoFileName = false;
+        boolean doVerify = false;
+        boolean doUpdate = false;
+        boolean doConvert = false;
+
+        int pos = 0;
+        for (; pos < args.length && args[pos].startsWith("-"); pos++)
+            switch (args[pos]) {
+                case "-a":
+                    doAutoFileName = true;
+                    break;
+                case "-v":
+                    doVerify = true;
+                    break;
+                case "-u":
+                    doUpdate = true;
+                    break;
+                case "-x":
+                    doConvert = true;
+                    break;
+                case "-b":
+                    binary = true;
+                    break;
+                case "-s":
+                    streaming = true;
+                    break;
+                case "-c":
+                    trustCache = true;
+                    break;
+                case "-q":
+                    quickVerify = true;
+                    break;
+                case "-d":
+                    directIO = true;
+                    break;
+                case "-V":
+                    virtualThreads = true;
+                    break;
+                case "-f":
+                    if (++pos >= args.length)
+                        showUsageAndAbort();
+                    try {
+                        format = Integer.parseInt(args[pos]);
+                    } catch (NumberFormatException e) {
+                        showUsageAndAbort();
+                    }
+                    if (format < 1 || format >= ALGO_BY_FORMAT.length)
+                        showUsageAndAbort();
+                    break;
+                case "-t":
+                    if (++pos >= args.length)
+                        showUsageAndAbort();
+                    if (args[pos].equals("auto")) {
+                        threads = Walker.AUTO_THREADS;
+                        break;
+                    }
+                    try {
+                        threads = Integer.parseInt(args[pos]);
+                    } catch (NumberFormatException e) {
+                        showUsageAndAbort();
+                    }
+                    if (threads < 1)
+                        showUsageAndAbort();
+                    break;
+                case "-l":
+                    if (++pos >= args.length)
+                        showUsageAndAbort();
+                    try {
+                        bytesPerSecond = (long) (Double.parseDouble(args[pos]) * (1 << 20));
+                    } catch (NumberFormatException e) {
+                        showUsageAndAbort();
+                    }
+                    if (bytesPerSecond < 1)
+                        showUsageAndAbort();
+                    break;
+                case "-i":
+                    if (++pos >= args.length)
+                        showUsageAndAbort();
+                    try {
+                        readsPerSecond = Integer.parseInt(args[pos]);
+                    } catch (NumberFormatException e) {
+                        showUsageAndAbort();
+                    }
+                    if (readsPerSecond < 1)
+                        showUsageAndAbort();
+                    break;
+                default:
+                    showUsageAndAbort();
+            }
+        args = Arrays.copyOfRange(args, pos, args.length);
+
+        if (virtualThreads && !Walker.isVirtualThreadsSupported()) {
+            System.out.println("Virtual threads need Java 21, using normal threads");
+            virtualThreads = false;
+        }
+        if (threads < 0)
+            threads = virtualThreads ? VIRTUAL_THREADS : 1;
 
         if (doVerify) {
-            doHeadlessVerification(Arrays.copyOfRange(args, 1, args.length));
+            doHeadlessVerification(args);
+            return;
+        }
+
+        if (doConvert) {
+            if (args.length != 2)
+                showUsageAndAbort();
+            doHeadlessConversion(new File(args[0]), new File(args[1]));
             return;
         }
 
+        if (doUpdate) {
+            if (args.length == 0)
+                showUsageAndAbort();
+            doHeadlessUpdate(args[0], Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        final boolean autoFileName = doAutoFileName;
         String[] files;
         final File checksumFileName;
-        if (doAutoFileName) {
-            files = Arrays.copyOfRange(args, 1, args.length);
+        if (autoFileName) {
+            files = args;
             checksumFileName = null;
         } else {
             files = Arrays.copyOfRange(args, 0, args.length - 1);
             checksumFileName = new File(args[args.length - 1]);
         }
 
-        final Walker walker = Walker.forFiles(FORMAT, files);
-
-        walker.setOnBuilding(() -> System.out.print("Building file tree... "));
-
-        final Thread updater = new Thread(() -> {
-            //noinspection InfiniteLoopStatement
-            while (true) {
-                MiscUtils.sleep(CLI_REFRESH_TIMEOUT);
-                outLine(walker.getStatus());
-            }
-        });
-        updater.setDaemon(true);
-
-        walker.setOnCalculating((s) -> {
-            System.out.println("Ok.");
-            System.out.println("Checksumming...");
-            updater.start();
-        });
+        final Walker walker = Walker.forFiles(format, files);
+        configure(walker);
 
         walker.setOnFinished((s) -> {
             System.out.print("Finished.  Speed: ");
@@ -86,17 +204,21 @@ public class Mus {
             System.out.print("  Time: ");
             System.out.print(MiscUtils.formatTime(s.secondsRemaining));
             System.out.println("                    ");
+            if (s.cachedFiles > 0)
+                System.out.println(s.cachedFiles + " unchanged files, checksums taken from cache");
+            outDevices(s);
 
             File dest;
-            if (doAutoFileName) {
+            if (autoFileName) {
                 FileList fl = walker.getFileList();
-                dest = new File(fl.getCommonAncestor().toFile(), fl.getChecksumFileNamePreset());
+                dest = new File(fl.getCommonAncestor().toFile(),
+                        fl.getChecksumFileNamePreset(binary));
             } else
                 dest = checksumFileName;
 
             System.out.print("Writing file " + dest + "... ");
             try (OutputStream os = new FileOutputStream(dest)) {
-                walker.getFileList().writeToFile(os);
+                walker.getFileList().writeToFile(os, FileList.isBinary(dest));
             } catch (Exception e) {
                 handleException(e);
             }
@@ -107,7 +229,7 @@ public class Mus {
 
         walker.setOnError(Mus::handleException);
 
-        new Thread(() -> walker.work(1)).start();
+        new Thread(() -> walker.work(threads)).start();
     }
 
     private static void doHeadlessVerification(String[] files) {
@@ -116,23 +238,7 @@ public class Mus {
             handleException(new Exception("No checksum files detected"));
 
         final Walker walker = Walker.forChecksums(checksums);
-
-        walker.setOnBuilding(() -> System.out.print("Building file tree... "));
-
-        final Thread updater = new Thread(() -> {
-            //noinspection InfiniteLoopStatement
-            while (true) {
-                MiscUtils.sleep(CLI_REFRESH_TIMEOUT);
-                outLine(walker.getStatus());
-            }
-        });
-        updater.setDaemon(true);
-
-        walker.setOnCalculating((s) -> {
-            System.out.println("Ok.");
-            System.out.println("Checksumming...");
-            updater.start();
-        });
+        configure(walker);
 
         walker.setOnFinished((s) -> {
             System.out.print("Finished.  Speed: ");
@@ -140,6 +246,9 @@ public class Mus {
             System.out.print("  Time: ");
             System.out.print(MiscUtils.formatTime(s.secondsRemaining));
             System.out.println("                    ");
+            if (s.cachedFiles > 0)
+                System.out.println(s.cachedFiles + " unchanged files, checksums taken from cache");
+            outDevices(s);
 
             boolean ok = true;
             if (s.filesKo != null && !s.filesKo.isEmpty()) {
@@ -165,7 +274,106 @@ public class Mus {
 
         walker.setOnError(Mus::handleException);
 
-        new Thread(() -> walker.work(1)).start();
+        new Thread(() -> walker.work(threads)).start();
+    }
+
+    private static void doHeadlessUpdate(String checksum, String[] files) {
+        final Walker walker = Walker.forUpdate(checksum, files);
+        configure(walker);
+
+        walker.setOnFinished((s) -> {
+            System.out.print("Finished.  Speed: ");
+            System.out.print(MiscUtils.formatSpeed(s.bytesPerSecond));
+            System.out.print("  Time: ");
+            System.out.print(MiscUtils.formatTime(s.secondsRemaining));
+            System.out.println("                    ");
+            if (s.cachedFiles > 0)
+                System.out.println(s.cachedFiles + " unchanged files, checksums taken from cache");
+            outDevices(s);
+
+            outFiles(s.filesAdded, "added");
+            outFiles(s.filesChanged, "changed");
+            outFiles(s.filesRemoved, "removed");
+            outFiles(s.filesKo, "with errors");
+
+            // written aside and then moved, not to lose the old one if something goes wrong
+            File dest = new File(checksum);
+            File tmp = new File(checksum + ".tmp");
+            System.out.println();
+            System.out.print("Writing file " + dest + "... ");
+            try {
+                try (OutputStream os = new FileOutputStream(tmp)) {
+                    walker.getFileList().writeToFile(os, FileList.isBinary(dest));
+                }
+                Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (Exception e) {
+                handleException(e);
+            }
+            System.out.println("Ok.");
+            System.out.println("All done.");
+            System.exit(0);
+        });
+
+        walker.setOnError(Mus::handleException);
+
+        new Thread(() -> walker.work(threads)).start();
+    }
+
+    private static void doHeadlessConversion(File from, File to) {
+        System.out.print("Converting " + from + " to " + to + "... ");
+        try {
+            FileList.convert(from, to);
+        } catch (ChecksumVerificationFailedException e) {
+            handleException(new Exception("The Mus file didn't pass integrity check"));
+        } catch (Exception e) {
+            handleException(e);
+        }
+        System.out.println("Ok.");
+        System.out.println("All done.");
+    }
+
+    private static void outFiles(List<String> files, String what) {
+        if (files == null || files.isEmpty())
+            return;
+        System.out.println();
+        System.out.println(files.size() + " files " + what + ":");
+        for (String f : files)
+            System.out.println(f);
+    }
+
+    private static void configure(Walker walker) {
+        walker.setStreaming(streaming);
+        walker.setTrustCache(trustCache);
+        walker.setForceFullRead(!quickVerify);
+        walker.setVirtualThreads(virtualThreads);
+        walker.setThrottle(bytesPerSecond, readsPerSecond);
+        walker.setDirectIO(directIO);
+
+        final Thread updater = new Thread(() -> {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                MiscUtils.sleep(CLI_REFRESH_TIMEOUT);
+                outLine(walker.getStatus());
+            }
+        });
+        updater.setDaemon(true);
+
+        walker.setOnBuilding(() -> {
+            if (streaming) {
+                System.out.println("Building file tree and checksumming...");
+                updater.start();
+            } else
+                System.out.print("Building file tree... ");
+        });
+
+        walker.setOnCalculating((s) -> {
+            if (streaming)
+                return;
+            System.out.println("Ok.");
+            System.out.println("Checksumming...");
+            updater.start();
+        });
     }
 
     private static void handleException(Exception e) {
@@ -175,6 +383,13 @@ public class Mus {
     }
 
     private static void outLine(Status s) {
+        if (s.state == Walker.State.BUILDING) {
+            System.out.print("Discovered: " + s.discoveredFiles + "  Checksummed: " + s.hashedFiles);
+            System.out.print("                    \r");
+            return;
+        }
+        if (s.state != Walker.State.CALCULATING)
+            return;
         System.out.print((s.doneFilesOk + s.doneFilesKo) + " of " + s.totFiles);
         System.out.print("  " + (s.percentageOn10k / 100) + "% done  Speed: ");
         System.out.print(MiscUtils.formatSpeed(s.bytesPerSecond));
@@ -182,6 +397,23 @@ public class Mus {
         System.out.print("                    \r");
     }
 
+    private static void outDevices(Status s) {
+        if (s.filesNotDirect != null) {
+            System.out.println("Files read bypassing the OS cache: " + s.directFiles);
+            outFiles(s.filesNotDirect, "read through the OS cache (the filesystem refused)");
+        }
+        if (s.tailIdleMillis >= 1000)
+            System.out.println("Workers idle at the end, waiting for the last files: "
+                    + MiscUtils.formatTime((int) (s.tailIdleMillis / 1000)) + " in total");
+        if (s.devices.size() < 2 && threads != Walker.AUTO_THREADS)
+            return;
+        for (Walker.DeviceStatus d : s.devices)
+            System.out.println("  " + d.name + (d.rotational ? " (rotational)" : "") + ": "
+                    + d.doneFiles + " files, " + MiscUtils.formatSize(d.sizeProcessed) + ", "
+                    + d.concurrency + (d.virtual ? " virtual" : "") + " thread(s)"
+                    + (d.tuned ? " at the end of tuning" : ""));
+    }
+
     public static void main(String[] args) {
         if (args.length > 0)
             doHeadless(args);
@@ -208,11 +440,34 @@ public class Mus {
     private static void showUsageAndAbort() {
         System.out.println(HEADER_STRING);
         System.err.println();
-        System.err.println("Commandline usage: java -jar Mus.jar [-v] [-a] <files...> [checksum file]");
+        System.err.println("Commandline usage: java -jar Mus.jar [-v] [-u] [-x] [-a] [-b] [-s] [-c] [-q] [-d] [-V] [-t threads] [-l MB/s] [-i reads/s] [-f format] <files...> [checksum file]");
         System.err.println();
         System.err.println("Options:");
         System.err.println("      -v: verify one or more checksum file(s)");
+        System.err.println("      -u: update a checksum file (the first argument), hashing only new and");
+        System.err.println("          modified files; by default, its top level entries are walked again");
+        System.err.println("          (\"modified\" is after the checksum file: copying or touching it");
+        System.err.println("          hides the earlier changes that kept the size)");
+        System.err.println("      -x: convert a checksum file (text .mu5 or binary .mu5b) to the other");
+        System.err.println("          format, given as second argument");
         System.err.println("      -a: determine automatically checksum file name");
+        System.err.println("      -b: with -a, create a binary (.mu5b) checksum file");
+        System.err.println("      -s: start checksumming while the file tree is still being built");
+        System.err.println("      -c: use the checksums cached in the files' extended attributes,");
+        System.err.println("          and store them there; unchanged files are not read again");
+        System.err.println("      -q: with -v and -c, don't read files that have a valid cached checksum");
+        System.err.println("      -d: read the files bypassing the OS cache (O_DIRECT), where");
+        System.err.println("          possible, not to evict the data of other programs");
+        System.err.println("      -V: use virtual threads (Java 21+), for network filesystems");
+        System.err.println("      -t: threads to use for each non-rotational device (default 1,");
+        System.err.println("          or " + VIRTUAL_THREADS + " with -V: they're the reads kept in flight);");
+        System.err.println("          \"auto\" tunes them while working, by the throughput");
+        System.err.println("      -l: limit the reads to this many Mb per second, overall (i.e. to");
+        System.err.println("          check in the background, leaving the disks to the others)");
+        System.err.println("      -i: limit the reads to this many operations per second, overall");
+        System.err.println("      -f: format of the checksum file to create (default " + FORMAT + "):");
+        System.err.println("          1 = MD5, 2 = SHA3-256, 3 = SHA3-256 tree of 16 Mb chunks,");
+        System.err.println("          4 = XXH3-128 (fast, non cryptographic: for bit rot scrubs)");
         System.err.println();
         System.exit(-1);
     }
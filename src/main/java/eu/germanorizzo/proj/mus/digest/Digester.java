@@ -0,0 +1,40 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.digest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A running digest computation. Not thread safe; digest() resets it for the next use.
+ */
+public interface Digester {
+    /**
+     * Length of the digest, in bytes
+     */
+    int getLength();
+
+    void update(byte[] input, int offset, int len);
+
+    void update(ByteBuffer input);
+
+    /**
+     * Writes the digest to out, then resets; returns the length of the digest.
+     */
+    int digest(byte[] out, int offset);
+
+    void reset();
+}
@@ -0,0 +1,54 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.digest;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Passes through what is written to it, updating a Digester along the way.
+ */
+public class DigesterOutputStream extends FilterOutputStream {
+    private final Digester digester;
+    private final byte[] single = new byte[1];
+
+    public DigesterOutputStream(OutputStream out, Digester digester) {
+        super(out);
+        this.digester = digester;
+    }
+
+    public void write(int b) throws IOException {
+        out.write(b);
+        single[0] = (byte) b;
+        digester.update(single, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        digester.update(b, off, len);
+    }
+
+    /**
+     * The digest of what was written so far; the Digester is then reset.
+     */
+    public byte[] digest() {
+        byte[] ret = new byte[digester.getLength()];
+        digester.digest(ret, 0);
+        return ret;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.digest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The algorithms of the Java Cryptography Architecture, by their standard name.
+ */
+public class JcaDigestProvider implements DigestProvider {
+    private final String algorithm;
+
+    public JcaDigestProvider(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    public String getName() {
+        return algorithm;
+    }
+
+    public Digester newDigester() throws IOException {
+        try {
+            return new JcaDigester(MessageDigest.getInstance(algorithm));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static class JcaDigester implements Digester {
+        private final MessageDigest md;
+
+        JcaDigester(MessageDigest md) {
+            this.md = md;
+        }
+
+        public int getLength() {
+            return md.getDigestLength();
+        }
+
+        public void update(byte[] input, int offset, int len) {
+            md.update(input, offset, len);
+        }
+
+        public void update(ByteBuffer input) {
+            md.update(input);
+        }
+
+        public int digest(byte[] out, int offset) {
+            try {
+                return md.digest(out, offset, out.length - offset);
+            } catch (DigestException e) {
+                md.reset();
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        public void reset() {
+            md.reset();
+        }
+    }
+}
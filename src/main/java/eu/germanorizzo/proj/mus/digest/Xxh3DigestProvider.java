@@ -0,0 +1,358 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.digest;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * XXH3 128 bits (seed 0, default secret), a fast non-cryptographic hash: pure Java port of
+ * the scalar code path of xxHash 0.8 (https://github.com/Cyan4973/xxHash). The digest is the
+ * canonical (big endian) representation: high 64 bits, then low 64 bits.
+ * Good to detect accidental corruption, NOT tampering.
+ */
+public class Xxh3DigestProvider implements DigestProvider {
+    private static final VarHandle BE64 = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.BIG_ENDIAN);
+
+    private static final long PRIME32_1 = 0x9E3779B1L;
+    private static final long PRIME32_2 = 0x85EBCA77L;
+    private static final long PRIME32_3 = 0xC2B2AE3DL;
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+    private static final long PRIME_MX1 = 0x165667919E3779F9L;
+    private static final long PRIME_MX2 = 0x9FB21C651E98DF25L;
+
+    private static final byte[] SECRET = bytes(
+            0xb8, 0xfe, 0x6c, 0x39, 0x23, 0xa4, 0x4b, 0xbe, 0x7c, 0x01, 0x81, 0x2c, 0xf7, 0x21, 0xad, 0x1c,
+            0xde, 0xd4, 0x6d, 0xe9, 0x83, 0x90, 0x97, 0xdb, 0x72, 0x40, 0xa4, 0xa4, 0xb7, 0xb3, 0x67, 0x1f,
+            0xcb, 0x79, 0xe6, 0x4e, 0xcc, 0xc0, 0xe5, 0x78, 0x82, 0x5a, 0xd0, 0x7d, 0xcc, 0xff, 0x72, 0x21,
+            0xb8, 0x08, 0x46, 0x74, 0xf7, 0x43, 0x24, 0x8e, 0xe0, 0x35, 0x90, 0xe6, 0x81, 0x3a, 0x26, 0x4c,
+            0x3c, 0x28, 0x52, 0xbb, 0x91, 0xc3, 0x00, 0xcb, 0x88, 0xd0, 0x65, 0x8b, 0x1b, 0x53, 0x2e, 0xa3,
+            0x71, 0x64, 0x48, 0x97, 0xa2, 0x0d, 0xf9, 0x4e, 0x38, 0x19, 0xef, 0x46, 0xa9, 0xde, 0xac, 0xd8,
+            0xa8, 0xfa, 0x76, 0x3f, 0xe3, 0x9c, 0x34, 0x3f, 0xf9, 0xdc, 0xbb, 0xc7, 0xc7, 0x0b, 0x4f, 0x1d,
+            0x8a, 0x51, 0xe0, 0x4b, 0xcd, 0xb4, 0x59, 0x31, 0xc8, 0x9f, 0x7e, 0xc9, 0xd9, 0x78, 0x73, 0x64,
+            0xea, 0xc5, 0xac, 0x83, 0x34, 0xd3, 0xeb, 0xc3, 0xc5, 0x81, 0xa0, 0xff, 0xfa, 0x13, 0x63, 0xeb,
+            0x17, 0x0d, 0xdd, 0x51, 0xb7, 0xf0, 0xda, 0x49, 0xd3, 0x16, 0x55, 0x26, 0x29, 0xd4, 0x68, 0x9e,
+            0x2b, 0x16, 0xbe, 0x58, 0x7d, 0x47, 0xa1, 0xfc, 0x8f, 0xf8, 0xb8, 0xd1, 0x7a, 0xd0, 0x31, 0xce,
+            0x45, 0xcb, 0x3a, 0x8f, 0x95, 0x16, 0x04, 0x28, 0xaf, 0xd7, 0xfb, 0xca, 0xbb, 0x4b, 0x40, 0x7e);
+
+    private static final int STRIPE_LEN = 64;
+    private static final int SECRET_CONSUME_RATE = 8;
+    private static final int STRIPES_PER_BLOCK = (SECRET.length - STRIPE_LEN) / SECRET_CONSUME_RATE;
+    private static final int SECRET_LASTACC_START = 7;
+    private static final int SECRET_MERGEACCS_START = 11;
+    private static final int MIDSIZE_MAX = 240;
+    private static final int MIDSIZE_STARTOFFSET = 3;
+    private static final int MIDSIZE_LASTOFFSET = 17;
+    private static final int SECRET_SIZE_MIN = 136;
+    // A multiple of the stripe length, bigger than MIDSIZE_MAX
+    private static final int BUFFER_SIZE = 256;
+    private static final int SCRATCH_SIZE = 4096;
+
+    public String getName() {
+        return "XXH3-128";
+    }
+
+    public Digester newDigester() {
+        return new Xxh3Digester();
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] ret = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            ret[i] = (byte) values[i];
+        return ret;
+    }
+
+    // Little-endian loads, independent of the platform's byte order
+    private static long readLE64(byte[] b, int offset) {
+        return (b[offset] & 0xFFL) | (b[offset + 1] & 0xFFL) << 8 | (b[offset + 2] & 0xFFL) << 16
+                | (b[offset + 3] & 0xFFL) << 24 | (b[offset + 4] & 0xFFL) << 32
+                | (b[offset + 5] & 0xFFL) << 40 | (b[offset + 6] & 0xFFL) << 48
+                | (b[offset + 7] & 0xFFL) << 56;
+    }
+
+    private static long readLE32(byte[] b, int offset) {
+        return (b[offset] & 0xFFL) | (b[offset + 1] & 0xFFL) << 8 | (b[offset + 2] & 0xFFL) << 16
+                | (b[offset + 3] & 0xFFL) << 24;
+    }
+
+    private static long unsignedMultiplyHigh(long a, long b) {
+        return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+    }
+
+    private static long mul128Fold64(long a, long b) {
+        return (a * b) ^ unsignedMultiplyHigh(a, b);
+    }
+
+    private static long xxh64Avalanche(long h) {
+        h ^= h >>> 33;
+        h *= PRIME64_2;
+        h ^= h >>> 29;
+        h *= PRIME64_3;
+        return h ^ (h >>> 32);
+    }
+
+    private static long xxh3Avalanche(long h) {
+        h ^= h >>> 37;
+        h *= PRIME_MX1;
+        return h ^ (h >>> 32);
+    }
+
+    private static long mix16B(byte[] in, int offset, int secretOffset, long seed) {
+        return mul128Fold64(readLE64(in, offset) ^ (readLE64(SECRET, secretOffset) + seed),
+                readLE64(in, offset + 8) ^ (readLE64(SECRET, secretOffset + 8) - seed));
+    }
+
+    // acc is {low, high}
+    private static void mix32B(long[] acc, byte[] in, int offset1, int offset2, int secretOffset,
+                               long seed) {
+        acc[0] += mix16B(in, offset1, secretOffset, seed);
+        acc[0] ^= readLE64(in, offset2) + readLE64(in, offset2 + 8);
+        acc[1] += mix16B(in, offset2, secretOffset + 16, seed);
+        acc[1] ^= readLE64(in, offset1) + readLE64(in, offset1 + 8);
+    }
+
+    // By couples of lanes, as lane i also receives the data of lane i ^ 1
+    private static void accumulate512(long[] acc, byte[] in, int offset, int secretOffset) {
+        for (int i = 0; i < 8; i += 2) {
+            long data0 = readLE64(in, offset + 8 * i);
+            long data1 = readLE64(in, offset + 8 * i + 8);
+            long key0 = data0 ^ readLE64(SECRET, secretOffset + 8 * i);
+            long key1 = data1 ^ readLE64(SECRET, secretOffset + 8 * i + 8);
+            acc[i] += data1 + (key0 & 0xFFFFFFFFL) * (key0 >>> 32);
+            acc[i + 1] += data0 + (key1 & 0xFFFFFFFFL) * (key1 >>> 32);
+        }
+    }
+
+    private static void scramble(long[] acc) {
+        int secretOffset = SECRET.length - STRIPE_LEN;
+        for (int i = 0; i < 8; i++) {
+            long a = acc[i];
+            a ^= a >>> 47;
+            a ^= readLE64(SECRET, secretOffset + 8 * i);
+            acc[i] = a * PRIME32_1;
+        }
+    }
+
+    private static long mergeAccs(long[] acc, int secretOffset, long start) {
+        long ret = start;
+        for (int i = 0; i < 4; i++)
+            ret += mul128Fold64(acc[2 * i] ^ readLE64(SECRET, secretOffset + 16 * i),
+                    acc[2 * i + 1] ^ readLE64(SECRET, secretOffset + 16 * i + 8));
+        return xxh3Avalanche(ret);
+    }
+
+    // Inputs up to MIDSIZE_MAX bytes, in one go; returns {low, high}
+    private static long[] hashShort(byte[] in, int len) {
+        long[] ret = new long[2];
+        if (len == 0) {
+            ret[0] = xxh64Avalanche(readLE64(SECRET, 64) ^ readLE64(SECRET, 72));
+            ret[1] = xxh64Avalanche(readLE64(SECRET, 80) ^ readLE64(SECRET, 88));
+        } else if (len <= 3) {
+            int c1 = in[0] & 0xFF, c2 = in[len >> 1] & 0xFF, c3 = in[len - 1] & 0xFF;
+            int combinedL = (c1 << 16) | (c2 << 24) | c3 | (len << 8);
+            int combinedH = Integer.rotateLeft(Integer.reverseBytes(combinedL), 13);
+            long bitflipL = readLE32(SECRET, 0) ^ readLE32(SECRET, 4);
+            long bitflipH = readLE32(SECRET, 8) ^ readLE32(SECRET, 12);
+            ret[0] = xxh64Avalanche((combinedL & 0xFFFFFFFFL) ^ bitflipL);
+            ret[1] = xxh64Avalanche((combinedH & 0xFFFFFFFFL) ^ bitflipH);
+        } else if (len <= 8) {
+            long input64 = readLE32(in, 0) + (readLE32(in, len - 4) << 32);
+            long keyed = input64 ^ (readLE64(SECRET, 16) ^ readLE64(SECRET, 24));
+            long m = PRIME64_1 + ((long) len << 2);
+            long lo = keyed * m;
+            long hi = unsignedMultiplyHigh(keyed, m);
+            hi += lo << 1;
+            lo ^= hi >>> 3;
+            lo ^= lo >>> 35;
+            lo *= PRIME_MX2;
+            lo ^= lo >>> 28;
+            ret[0] = lo;
+            ret[1] = xxh3Avalanche(hi);
+        } else if (len <= 16) {
+            long bitflipL = readLE64(SECRET, 32) ^ readLE64(SECRET, 40);
+            long bitflipH = readLE64(SECRET, 48) ^ readLE64(SECRET, 56);
+            long inputLo = readLE64(in, 0);
+            long inputHi = readLE64(in, len - 8);
+            long x = inputLo ^ inputHi ^ bitflipL;
+            long lo = x * PRIME64_1;
+            long hi = unsignedMultiplyHigh(x, PRIME64_1);
+            lo += (long) (len - 1) << 54;
+            inputHi ^= bitflipH;
+            hi += inputHi + (inputHi & 0xFFFFFFFFL) * (PRIME32_2 - 1);
+            lo ^= Long.reverseBytes(hi);
+            long hLo = lo * PRIME64_2;
+            long hHi = unsignedMultiplyHigh(lo, PRIME64_2) + hi * PRIME64_2;
+            ret[0] = xxh3Avalanche(hLo);
+            ret[1] = xxh3Avalanche(hHi);
+        } else {
+            long[] acc = new long[]{len * PRIME64_1, 0};
+            if (len <= 128) {
+                if (len > 32) {
+                    if (len > 64) {
+                        if (len > 96)
+                            mix32B(acc, in, 48, len - 64, 96, 0);
+                        mix32B(acc, in, 32, len - 48, 64, 0);
+                    }
+                    mix32B(acc, in, 16, len - 32, 32, 0);
+                }
+                mix32B(acc, in, 0, len - 16, 0, 0);
+            } else {
+                for (int i = 32; i < 160; i += 32)
+                    mix32B(acc, in, i - 32, i - 16, i - 32, 0);
+                acc[0] = xxh3Avalanche(acc[0]);
+                acc[1] = xxh3Avalanche(acc[1]);
+                for (int i = 160; i <= len; i += 32)
+                    mix32B(acc, in, i - 32, i - 16, MIDSIZE_STARTOFFSET + i - 160, 0);
+                mix32B(acc, in, len - 16, len - 32,
+                        SECRET_SIZE_MIN - MIDSIZE_LASTOFFSET - 16, 0);
+            }
+            ret[0] = xxh3Avalanche(acc[0] + acc[1]);
+            ret[1] = -xxh3Avalanche(acc[0] * PRIME64_1 + acc[1] * PRIME64_4 + len * PRIME64_2);
+        }
+        return ret;
+    }
+
+    /* Streaming: the input is accumulated a stripe at a time, but the stripe holding the last
+     * byte must be processed as the "last stripe" in digest(); so a stripe is consumed only
+     * when there's more input after it. */
+    private static class Xxh3Digester implements Digester {
+        private final long[] acc = new long[8];
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final byte[] lastStripe = new byte[STRIPE_LEN];
+        private final byte[] scratch = new byte[SCRATCH_SIZE];
+        private int buffered;
+        private int stripesInBlock;
+        private long total;
+
+        Xxh3Digester() {
+            reset();
+        }
+
+        public int getLength() {
+            return 16;
+        }
+
+        public void reset() {
+            acc[0] = PRIME32_3;
+            acc[1] = PRIME64_1;
+            acc[2] = PRIME64_2;
+            acc[3] = PRIME64_3;
+            acc[4] = PRIME64_4;
+            acc[5] = PRIME32_2;
+            acc[6] = PRIME64_5;
+            acc[7] = PRIME32_1;
+            buffered = 0;
+            stripesInBlock = 0;
+            total = 0;
+        }
+
+        private void consumeStripe(byte[] in, int offset) {
+            accumulate512(acc, in, offset, stripesInBlock * SECRET_CONSUME_RATE);
+            if (++stripesInBlock == STRIPES_PER_BLOCK) {
+                scramble(acc);
+                stripesInBlock = 0;
+            }
+        }
+
+        public void update(byte[] input, int offset, int len) {
+            total += len;
+            if (buffered + len <= BUFFER_SIZE) {
+                System.arraycopy(input, offset, buffer, buffered, len);
+                buffered += len;
+                return;
+            }
+
+            // from here on, there's always more input after what's consumed
+            if (buffered > 0) {
+                int fill = BUFFER_SIZE - buffered;
+                System.arraycopy(input, offset, buffer, buffered, fill);
+                offset += fill;
+                len -= fill;
+                for (int i = 0; i < BUFFER_SIZE; i += STRIPE_LEN)
+                    consumeStripe(buffer, i);
+                System.arraycopy(buffer, BUFFER_SIZE - STRIPE_LEN, lastStripe, 0, STRIPE_LEN);
+                buffered = 0;
+            }
+            if (len > BUFFER_SIZE) {
+                while (len > BUFFER_SIZE) {
+                    for (int i = 0; i < BUFFER_SIZE; i += STRIPE_LEN)
+                        consumeStripe(input, offset + i);
+                    offset += BUFFER_SIZE;
+                    len -= BUFFER_SIZE;
+                }
+                System.arraycopy(input, offset - STRIPE_LEN, lastStripe, 0, STRIPE_LEN);
+            }
+            System.arraycopy(input, offset, buffer, 0, len);
+            buffered = len;
+        }
+
+        public void update(ByteBuffer input) {
+            if (input.hasArray()) {
+                update(input.array(), input.arrayOffset() + input.position(), input.remaining());
+                input.position(input.limit());
+                return;
+            }
+            while (input.hasRemaining()) {
+                int len = Math.min(input.remaining(), scratch.length);
+                input.get(scratch, 0, len);
+                update(scratch, 0, len);
+            }
+        }
+
+        public int digest(byte[] out, int offset) {
+            long lo, hi;
+            if (total <= MIDSIZE_MAX) {
+                long[] h = hashShort(buffer, (int) total);
+                lo = h[0];
+                hi = h[1];
+            } else {
+                int i = 0;
+                for (; i + STRIPE_LEN < buffered; i += STRIPE_LEN)
+                    consumeStripe(buffer, i);
+                // the last stripe are the last 64 bytes, some of which may be already consumed
+                byte[] last;
+                int lastOffset;
+                if (buffered >= STRIPE_LEN) {
+                    last = buffer;
+                    lastOffset = buffered - STRIPE_LEN;
+                } else {
+                    System.arraycopy(lastStripe, buffered, scratch, 0, STRIPE_LEN - buffered);
+                    System.arraycopy(buffer, 0, scratch, STRIPE_LEN - buffered, buffered);
+                    last = scratch;
+                    lastOffset = 0;
+                }
+                accumulate512(acc, last, lastOffset,
+                        SECRET.length - STRIPE_LEN - SECRET_LASTACC_START);
+                lo = mergeAccs(acc, SECRET_MERGEACCS_START, total * PRIME64_1);
+                hi = mergeAccs(acc, SECRET.length - STRIPE_LEN - SECRET_MERGEACCS_START,
+                        ~(total * PRIME64_2));
+            }
+            BE64.set(out, offset, hi);
+            BE64.set(out, offset + 8, lo);
+            reset();
+            return 16;
+        }
+    }
+}
@@ -20,6 +20,7 @@ import eu.germanorizzo.proj.mus.Mus;
 import eu.germanorizzo.proj.mus.internals.FileList;
 import eu.germanorizzo.proj.mus.internals.FileList.Info;
 import eu.germanorizzo.proj.mus.internals.FileList.State;
+import eu.germanorizzo.proj.mus.internals.TreeScan;
 import eu.germanorizzo.proj.mus.internals.Walker;
 import eu.germanorizzo.proj.mus.utils.GUIUtils;
 import eu.germanorizzo.proj.mus.utils.MiscUtils;
@@ -51,6 +52,9 @@ public class MainWindow extends JFrame {
     private static final int REFRESH_TIMEOUT = 1000 / 12; // 12 FPS
 
     private static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors() + 1;
+    private static final int MAX_PLATFORM_THREADS = Math.max(12, DEFAULT_THREADS);
+    // With virtual threads
+    private static final int MAX_VIRTUAL_THREADS = 1024;
 
     private static final Column[] COLUMNS_4_CALC = new Column[]{new Column(Icon.class, "", 22),
             new Column(String.class, "File name"), new Column(String.class, "Checksum", 300)};
@@ -76,6 +80,8 @@ public class MainWindow extends JFrame {
     private final JButton btClear;
     private final JButton btInfo;
     private final JSpinner spnThreads;
+    private final JCheckBox chkAutoThreads;
+    private final JCheckBox chkVirtualThreads;
     private final JLabel lblFileNumber;
     private final JLabel lblFileOk;
     private final JLabel lblFileKo;
@@ -115,11 +121,30 @@ public class MainWindow extends JFrame {
         spnThreads = new JSpinner();
         spnThreads.setToolTipText(
                 "How many threads to use (specify 1 if dealing with slow media i.e. CD-ROM)");
-        spnThreads.setModel(new SpinnerNumberModel(DEFAULT_THREADS, 1, 12, 1));
+        SpinnerNumberModel threadsModel = new SpinnerNumberModel(DEFAULT_THREADS, 1,
+                MAX_PLATFORM_THREADS, 1);
+        spnThreads.setModel(threadsModel);
         spnThreads.setValue(Integer.valueOf(1));
 
         JLabel lblThreads = new JLabel("Threads:");
 
+        chkAutoThreads = new JCheckBox("Auto");
+        chkAutoThreads.setToolTipText("Tune the number of threads while working, by the speed");
+        chkAutoThreads.addItemListener((e) -> spnThreads.setEnabled(!chkAutoThreads.isSelected()));
+
+        chkVirtualThreads = new JCheckBox("Virtual");
+        chkVirtualThreads.setToolTipText(Walker.isVirtualThreadsSupported()
+                ? "Use virtual threads: they're cheap enough to have hundreds, to keep many"
+                + " reads in flight on network drives"
+                : "Virtual threads need Java 21");
+        chkVirtualThreads.setEnabled(Walker.isVirtualThreadsSupported());
+        chkVirtualThreads.addItemListener((e) -> {
+            int max = chkVirtualThreads.isSelected() ? MAX_VIRTUAL_THREADS : MAX_PLATFORM_THREADS;
+            threadsModel.setMaximum(max);
+            if (threadsModel.getNumber().intValue() > max)
+                threadsModel.setValue(max);
+        });
+
         JPanel panel = new JPanel();
         panel.setBorder(new EtchedBorder(EtchedBorder.LOWERED, null, null));
         GroupLayout gl_contentPane = new GroupLayout(contentPane);
@@ -140,6 +165,10 @@ public class MainWindow extends JFrame {
                                                 .addPreferredGap(ComponentPlacement.UNRELATED)
                                                 .addComponent(spnThreads, GroupLayout.PREFERRED_SIZE,
                                                         GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE)
+                                                .addPreferredGap(ComponentPlacement.RELATED)
+                                                .addComponent(chkAutoThreads)
+                                                .addPreferredGap(ComponentPlacement.RELATED)
+                                                .addComponent(chkVirtualThreads)
                                                 .addContainerGap())
                                 .addComponent(scrollPane, GroupLayout.DEFAULT_SIZE, 694, Short.MAX_VALUE));
         gl_contentPane.setVerticalGroup(gl_contentPane.createParallelGroup(Alignment.TRAILING)
@@ -151,6 +180,8 @@ public class MainWindow extends JFrame {
                                 .addComponent(lblRootDir)
                                 .addComponent(spnThreads, GroupLayout.PREFERRED_SIZE, 20,
                                         GroupLayout.PREFERRED_SIZE)
+                                .addComponent(chkAutoThreads)
+                                .addComponent(chkVirtualThreads)
                                 .addComponent(lblThreads).addComponent(tfDirectory,
                                         GroupLayout.PREFERRED_SIZE, GroupLayout.DEFAULT_SIZE,
                                         GroupLayout.PREFERRED_SIZE))
@@ -318,7 +349,7 @@ public class MainWindow extends JFrame {
 
         try {
             try (OutputStream os = new FileOutputStream(file)) {
-                fileList.writeToFile(os);
+                fileList.writeToFile(os, FileList.isBinary(file));
             }
         } catch (Exception e) {
             GUIUtils.reportException(this, e);
@@ -353,17 +384,19 @@ public class MainWindow extends JFrame {
     private void work(String... files) {
         reinit();
 
-        final int threads = ((Integer) spnThreads.getValue()).intValue();
+        final int threads = chkAutoThreads.isSelected() ? Walker.AUTO_THREADS
+                : ((Integer) spnThreads.getValue()).intValue();
 
-        List<String> checksums = Walker.areThereChecksumFiles(files);
+        // a single walk, both to look for checksum files and to find the files to checksum
+        TreeScan scan = TreeScan.scan(files);
         final Walker walker;
-        if (checksums.isEmpty())
-            walker = Walker.forFiles(Mus.FORMAT, files);
+        if (scan.checksumFiles.isEmpty())
+            walker = Walker.forScan(Mus.FORMAT, scan);
         else if (GUIUtils.askConfirmation(this, "Mus checksum files have been detected\n"
                 + "Do you want to switch to Verification mode?"))
-            walker = Walker.forChecksums(checksums);
+            walker = Walker.forChecksums(scan.checksumFiles);
         else
-            walker = Walker.forFiles(Mus.FORMAT, files);
+            walker = Walker.forScan(Mus.FORMAT, scan);
 
         fileList = walker.getFileList();
 
@@ -395,10 +428,11 @@ public class MainWindow extends JFrame {
                 lblFileOk.setText(s.doneFilesOk + SUFFIX_LBL_FILE_OK);
                 lblFileKo.setText(s.doneFilesKo + SUFFIX_LBL_FILE_KO);
 
-                JComponent vp = GUIUtils.scrollTableTo(tblFiles,
-                        +s.doneFilesOk + s.doneFilesKo + threads + 1);
+                GUIUtils.updUI(tblFiles, pbProgress, lblFileOk, lblFileKo);
 
-                GUIUtils.updUI(tblFiles, pbProgress, lblFileOk, lblFileKo, vp);
+                // the files aren't completed in path order: follows the last one
+                if (s.lastDoneFile >= 0)
+                    GUIUtils.updUI(GUIUtils.scrollTableTo(tblFiles, s.lastDoneFile));
             }
         });
         updater.setDaemon(true);
@@ -439,6 +473,7 @@ public class MainWindow extends JFrame {
             reinit();
         });
 
+        walker.setVirtualThreads(chkVirtualThreads.isSelected());
         new Thread(() -> walker.work(threads)).start();
     }
 
@@ -451,7 +486,7 @@ public class MainWindow extends JFrame {
         return new TableContent.RowCalc((col) -> {
             switch (col) {
                 case 0:
-                    switch (info.state) {
+                    switch (info.getState()) {
                         case OK:
                             return ICON_OK;
                         case ERR:
@@ -462,23 +497,23 @@ public class MainWindow extends JFrame {
                             return null;
                     }
                 case 1:
-                    return info.path.toString();
+                    return info.getPath().toString();
                 case 2:
-                    switch (info.state) {
+                    switch (info.getState()) {
                         case OK:
-                            return info.checksum;
+                            return info.getChecksum();
                         case ERR:
-                            return info.error;
+                            return info.getError();
                         case WORKING:
-                            return info.checksum == null ? "Calculating..."
-                                    : "Checking " + info.checksum + "...";
+                            return info.getChecksum() == null ? "Calculating..."
+                                    : "Checking " + info.getChecksum() + "...";
                         default:
                             return "";
                     }
             }
             return null;
         }, () -> {
-            if (info.state == State.ERR)
+            if (info.getState() == State.ERR)
                 return Color.YELLOW;
             return Color.WHITE;
         });
@@ -510,7 +545,8 @@ public class MainWindow extends JFrame {
         chooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
         chooser.setDialogType(JFileChooser.SAVE_DIALOG);
 
-        FileFilter ff = new FileNameExtensionFilter("Mus Checksum Files", FileList.EXTENSION);
+        FileFilter ff = new FileNameExtensionFilter("Mus Checksum Files", FileList.EXTENSION,
+                FileList.BINARY_EXTENSION);
         chooser.addChoosableFileFilter(ff);
         chooser.setFileFilter(ff);
 
@@ -0,0 +1,184 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import eu.germanorizzo.proj.mus.Mus;
+import eu.germanorizzo.proj.mus.digest.Digester;
+import eu.germanorizzo.proj.mus.utils.MiscUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads a binary checksum file (see BinaryManifestWriter). The file is memory-mapped a block
+ * of entries at a time (as found in the index), and read() decodes all the entries, in order,
+ * passing them on: the callers load them all, and the checksum of the file covers them all
+ * anyway. The directories are resolved once, the checksums are passed raw. The checksum of
+ * the file is checked at the end, like for the text format.
+ */
+class BinaryManifestReader {
+    private static final int TRAILER_LEN = 1 + BinaryManifestWriter.END_MAGIC.length;
+    private static final int COUNTS_LEN = 3 * 8;
+
+    private final File file;
+    private final int format;
+    private final long entries, indexOffset, dirsOffset, countsOffset;
+    private final byte[] checksum;
+
+    BinaryManifestReader(File file) throws IOException {
+        this.file = file.getAbsoluteFile();
+        try (FileChannel ch = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer trailer = read(ch, size - TRAILER_LEN, TRAILER_LEN);
+            format = trailer.get();
+            byte[] magic = new byte[BinaryManifestWriter.END_MAGIC.length];
+            trailer.get(magic);
+            if (!Arrays.equals(magic, BinaryManifestWriter.END_MAGIC))
+                throw new IOException("Not a binary checksum file: " + file);
+            if (format < 1 || format >= Mus.ALGO_BY_FORMAT.length)
+                throw new IOException("Unsupported format " + format + " for " + file);
+
+            checksum = new byte[Mus.ALGO_LEN_BY_FORMAT[format] / 2];
+            countsOffset = size - TRAILER_LEN - checksum.length - COUNTS_LEN;
+            ByteBuffer counts = read(ch, countsOffset, COUNTS_LEN + checksum.length);
+            entries = counts.getLong();
+            indexOffset = counts.getLong();
+            dirsOffset = counts.getLong();
+            counts.get(checksum);
+            if (indexOffset < BinaryManifestWriter.HEADER_LEN || dirsOffset < indexOffset
+                    || countsOffset < dirsOffset)
+                throw new IOException("Corrupted binary checksum file: " + file);
+        }
+    }
+
+    int getFormat() {
+        return format;
+    }
+
+    /**
+     * Passes the entries to the consumer; returns the format.
+     */
+    int read(ManifestReader.EntryConsumer consumer)
+            throws IOException, ChecksumVerificationFailedException {
+        Digester digester = Mus.ALGO_BY_FORMAT[format].newDigester();
+        Path parent = file.toPath().getParent();
+        int checksumLen = checksum.length;
+
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = map(ch, 0, BinaryManifestWriter.HEADER_LEN);
+            digester.update(header.duplicate());
+            byte[] magic = new byte[BinaryManifestWriter.MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, BinaryManifestWriter.MAGIC)
+                    || header.get() != BinaryManifestWriter.VERSION)
+                throw new IOException("Unsupported binary checksum file: " + file);
+
+            ByteBuffer indexBuf = map(ch, indexOffset, dirsOffset - indexOffset);
+            ByteBuffer dirsBuf = map(ch, dirsOffset, countsOffset - dirsOffset);
+            long[] index = new long[(int) getVarint(indexBuf.duplicate())];
+            ByteBuffer b = indexBuf.duplicate();
+            getVarint(b);
+            for (int i = 0; i < index.length; i++) {
+                index[i] = b.getLong();
+                if (index[i] < (i == 0 ? BinaryManifestWriter.HEADER_LEN : index[i - 1])
+                        || index[i] > indexOffset)
+                    throw new IOException("Corrupted binary checksum file: " + file);
+            }
+            b = dirsBuf.duplicate();
+            Path[] dirs = new Path[(int) getVarint(b)];
+            for (int i = 0; i < dirs.length; i++) {
+                String dir = getString(b);
+                dirs[i] = dir.isEmpty() ? parent : parent.resolve(dir);
+            }
+
+            long read = 0;
+            for (int block = 0; block < index.length; block++) {
+                long end = block + 1 < index.length ? index[block + 1] : indexOffset;
+                ByteBuffer entriesBuf = map(ch, index[block], end - index[block]);
+                digester.update(entriesBuf.duplicate());
+                while (entriesBuf.hasRemaining()) {
+                    Path dir = dirs[(int) getVarint(entriesBuf)];
+                    Path path = dir.resolve(getString(entriesBuf));
+                    long size = getVarint(entriesBuf);
+                    if (entriesBuf.get() == 0) {
+                        byte[] raw = new byte[checksumLen];
+                        entriesBuf.get(raw);
+                        consumer.accept(format, path, raw, null, size);
+                    } else
+                        consumer.accept(format, path, null, getString(entriesBuf), size);
+                    read++;
+                }
+            }
+            if (read != entries)
+                throw new ChecksumVerificationFailedException(file.getPath());
+
+            digester.update(indexBuf);
+            digester.update(dirsBuf);
+            digester.update(map(ch, countsOffset, COUNTS_LEN));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | NegativeArraySizeException | IllegalStateException e) {
+            // a truncated or overwritten file
+            throw new IOException("Corrupted binary checksum file: " + file, e);
+        }
+
+        byte[] calc = new byte[checksumLen];
+        digester.digest(calc, 0);
+        if (!Arrays.equals(calc, checksum))
+            throw new ChecksumVerificationFailedException(file.getPath());
+        return format;
+    }
+
+    private static ByteBuffer map(FileChannel ch, long offset, long len) throws IOException {
+        if (len > Integer.MAX_VALUE)
+            throw new IOException("Section too big in binary checksum file");
+        return ch.map(FileChannel.MapMode.READ_ONLY, offset, len);
+    }
+
+    private static ByteBuffer read(FileChannel ch, long offset, int len) throws IOException {
+        if (offset < 0)
+            throw new IOException("Not a binary checksum file");
+        ByteBuffer ret = ByteBuffer.allocate(len);
+        while (ret.hasRemaining())
+            if (ch.read(ret, offset + ret.position()) < 0)
+                throw new IOException("Not a binary checksum file");
+        return ret.flip();
+    }
+
+    private static long getVarint(ByteBuffer b) {
+        long ret = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte v = b.get();
+            ret |= (long) (v & 0x7F) << shift;
+            if (v >= 0)
+                return ret;
+            if (shift > 56)
+                throw new IllegalStateException("Varint too long");
+        }
+    }
+
+    private static String getString(ByteBuffer b) {
+        byte[] bytes = new byte[(int) getVarint(b)];
+        b.get(bytes);
+        return new String(bytes, MiscUtils.UTF8);
+    }
+}
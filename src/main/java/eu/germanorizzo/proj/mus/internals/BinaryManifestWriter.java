@@ -0,0 +1,169 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import eu.germanorizzo.proj.mus.Mus;
+import eu.germanorizzo.proj.mus.digest.DigesterOutputStream;
+import eu.germanorizzo.proj.mus.utils.MiscUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary (.mu5b) format. Varints are unsigned LEB128, longs are big endian, strings are
+ * a varint length followed by UTF-8 bytes.
+ * <pre>
+ * Header:     "MU5B", version (1 byte)
+ * Entries:    directory id (varint), file name (string), size (varint), then either
+ *             0 and the raw checksum, or 1 and the error (string)
+ * Index:      number of offsets (varint), then the offset of each INDEX_STEP-th entry (longs)
+ * Dirs:       number of directories (varint), then their paths (strings, '/' separated, ""
+ *             for the directory of the checksum file)
+ * Counts:     number of entries, offset of the index, offset of the dirs (longs)
+ * Checksum:   of all the above, with the algorithm of the format (raw)
+ * Trailer:    format (1 byte), "MU5E"
+ * </pre>
+ * The directory table is written at the end, so that the entries can be streamed.
+ */
+class BinaryManifestWriter implements ManifestWriter {
+    static final byte[] MAGIC = new byte[]{'M', 'U', '5', 'B'};
+    static final byte[] END_MAGIC = new byte[]{'M', 'U', '5', 'E'};
+    static final int VERSION = 1;
+    static final int INDEX_STEP = 1024;
+    static final int HEADER_LEN = MAGIC.length + 1;
+    private static final int BUFFER_SIZE = 65536;
+
+    private final int format;
+    private final BufferedOutputStream bos;
+    private final DigesterOutputStream dos;
+    private final Map<String, Integer> dirIds = new HashMap<>();
+    private final List<String> dirs = new ArrayList<>();
+    private final List<Long> index = new ArrayList<>();
+    private byte[] buf = new byte[1024];
+    private int len;
+    private long pos, entries;
+
+    BinaryManifestWriter(OutputStream os, int format) throws IOException {
+        this.format = format;
+        bos = new BufferedOutputStream(os, BUFFER_SIZE);
+        dos = new DigesterOutputStream(bos, Mus.ALGO_BY_FORMAT[format].newDigester());
+        put(MAGIC);
+        putByte(VERSION);
+        flushBuf();
+    }
+
+    public void add(String path, byte[] checksum, String error, long size) throws IOException {
+        if (size < 0)
+            throw new IOException("Invalid size for " + path);
+        if (entries++ % INDEX_STEP == 0)
+            index.add(pos);
+
+        int slash = path.lastIndexOf('/');
+        String dir = slash < 0 ? "" : path.substring(0, slash);
+        Integer dirId = dirIds.get(dir);
+        if (dirId == null) {
+            dirId = dirs.size();
+            dirIds.put(dir, dirId);
+            dirs.add(dir);
+        }
+        putVarint(dirId);
+        putString(path.substring(slash + 1));
+        putVarint(size);
+        if (checksum != null && checksum.length * 2 == Mus.ALGO_LEN_BY_FORMAT[format]) {
+            putByte(0);
+            put(checksum);
+        } else {
+            putByte(1);
+            putString(checksum != null ? MiscUtils.bytes2armored(checksum)
+                    : String.valueOf(error));
+        }
+        flushBuf();
+    }
+
+    public void finish() throws IOException {
+        long indexOffset = pos;
+        putVarint(index.size());
+        for (long offset : index)
+            putLong(offset);
+        flushBuf();
+
+        long dirsOffset = pos;
+        putVarint(dirs.size());
+        for (String dir : dirs) {
+            putString(dir);
+            flushBuf();
+        }
+
+        putLong(entries);
+        putLong(indexOffset);
+        putLong(dirsOffset);
+        flushBuf();
+
+        // out of the digest
+        bos.write(dos.digest());
+        bos.write(format);
+        bos.write(END_MAGIC);
+        bos.flush();
+    }
+
+    private void flushBuf() throws IOException {
+        dos.write(buf, 0, len);
+        pos += len;
+        len = 0;
+    }
+
+    private void ensure(int more) {
+        if (len + more > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(len + more, buf.length * 2));
+    }
+
+    private void putByte(int b) {
+        ensure(1);
+        buf[len++] = (byte) b;
+    }
+
+    private void put(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, len, bytes.length);
+        len += bytes.length;
+    }
+
+    private void putVarint(long v) {
+        while ((v & ~0x7FL) != 0) {
+            putByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        putByte((int) v);
+    }
+
+    private void putLong(long v) {
+        for (int i = 56; i >= 0; i -= 8)
+            putByte((int) (v >>> i));
+    }
+
+    private void putString(String s) {
+        byte[] bytes = s.getBytes(MiscUtils.UTF8);
+        putVarint(bytes.length);
+        put(bytes);
+    }
+}
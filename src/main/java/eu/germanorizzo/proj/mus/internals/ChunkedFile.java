@@ -0,0 +1,121 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import eu.germanorizzo.proj.mus.Mus;
+import eu.germanorizzo.proj.mus.internals.FileList.Info;
+import eu.germanorizzo.proj.mus.utils.HashContext;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * A file of a tree format whose chunks are hashed by more workers at once. The worker that
+ * hashes the last chunk combines the tree and completes the file.
+ */
+class ChunkedFile {
+    final Info info;
+    private final int format;
+    private final FileChannel channel;
+    private final int chunks;
+    private final int leafLen;
+    private final byte[] leaves;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger done = new AtomicInteger();
+    private final Completion onComplete;
+    private volatile Exception error;
+
+    // takes ownership of the channel
+    ChunkedFile(int format, Info info, FileChannel channel, Completion onComplete)
+            throws IOException {
+        this.format = format;
+        this.info = info;
+        this.onComplete = onComplete;
+        this.channel = channel;
+        chunks = HashContext.chunks(format, channel.size());
+        leafLen = Mus.ALGO_LEN_BY_FORMAT[format] / 2;
+        leaves = new byte[chunks * leafLen];
+    }
+
+    int getChunks() {
+        return chunks;
+    }
+
+    boolean isExhausted() {
+        return next.get() >= chunks;
+    }
+
+    /**
+     * Hashes the chunks not yet taken by other workers; returns false if there were none.
+     */
+    boolean work(HashContext ctx, IntConsumer onAdvancement) {
+        boolean worked = false;
+        int chunk;
+        while ((chunk = next.getAndIncrement()) < chunks) {
+            worked = true;
+            if (error == null)
+                hashChunk(ctx, chunk, onAdvancement);
+            if (done.incrementAndGet() == chunks)
+                complete(ctx);
+        }
+        return worked;
+    }
+
+    private void hashChunk(HashContext ctx, int chunk, IntConsumer onAdvancement) {
+        Events.ChunkHash event = new Events.ChunkHash();
+        boolean timed = event.isEnabled();
+        if (timed) {
+            event.begin();
+            ctx.startTiming();
+        }
+        try {
+            ctx.hashChunk(format, channel, chunk, onAdvancement, leaves, chunk * leafLen);
+        } catch (Exception e) {
+            error = e;
+        }
+        if (timed) {
+            ctx.stopTiming();
+            event.path = info.getPath().toString();
+            event.chunk = chunk;
+            long chunkSize = Mus.CHUNK_SIZE_BY_FORMAT[format];
+            event.bytes = Math.min(chunkSize, info.getSize() - chunk * chunkSize);
+            event.readTime = ctx.getReadNanos();
+            event.digestTime = ctx.getDigestNanos();
+            event.commit();
+        }
+    }
+
+    private void complete(HashContext ctx) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        if (error == null)
+            try {
+                ctx.combine(format, leaves, chunks);
+            } catch (Exception e) {
+                error = e;
+            }
+        onComplete.complete(this, ctx, error);
+    }
+
+    interface Completion {
+        void complete(ChunkedFile file, HashContext ctx, Exception error);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+/**
+ * Hill climbing on the number of active workers of a device, by the throughput observed
+ * at each tick: while it improves, the level moves on in the same direction; when it gets
+ * worse, it turns back. On a plateau it holds, probing again every PROBE_TICKS ticks, so
+ * that it follows the workload when it moves to different media. Not thread safe: it's
+ * ticked by a single thread.
+ */
+class ConcurrencyTuner {
+    static final int START_LEVEL = 2;
+    // Relative change of throughput that is not noise
+    private static final double THRESHOLD = 0.1;
+    private static final int PROBE_TICKS = 5;
+
+    private final DeviceQueue device;
+    private final int max;
+    private int direction = 1;
+    private int stableTicks;
+    private long lastBytes, lastTime;
+    private double lastRate = -1;
+
+    ConcurrencyTuner(DeviceQueue device, int max) {
+        this.device = device;
+        this.max = max;
+    }
+
+    void tick() {
+        long now = System.nanoTime();
+        long bytes = device.sizeProcessed.sum();
+        double rate = lastTime == 0 ? -1 : (bytes - lastBytes) * 1e9 / (now - lastTime);
+        lastBytes = bytes;
+        lastTime = now;
+
+        // without a backlog, the throughput doesn't depend on the workers
+        if (rate < 0 || device.doneFiles.sum() >= device.totFiles.get()) {
+            lastRate = -1;
+            return;
+        }
+
+        if (lastRate < 0 || rate > lastRate * (1 + THRESHOLD))
+            move();
+        else if (rate < lastRate * (1 - THRESHOLD)) {
+            direction = -direction;
+            move();
+        } else if (++stableTicks >= PROBE_TICKS)
+            move();
+        lastRate = rate;
+    }
+
+    private void move() {
+        stableTicks = 0;
+        int level = device.getLimit();
+        if ((direction > 0 && level >= max) || (direction < 0 && level <= 1))
+            direction = -direction;
+        int step = Math.max(1, level / 4);
+        device.setLimit(Math.max(1, Math.min(max, level + direction * step)));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * The time still needed by a device, as a cost per file (opening, metadata, seeks) plus a
+ * cost per byte (reading, hashing), fitted by least squares on the recent intervals: each
+ * one says how many files and bytes were done in how much time. The files are dispatched
+ * largest first, so the two rates taken alone mislead: the bytes go fast at the start and
+ * the files at the end. The counters are sampled when the estimate is read, at most every
+ * MIN_INTERVAL; the older intervals weigh less, with time constant TAU.
+ */
+class CostModel {
+    private static final double TAU = TimeUnit.SECONDS.toNanos(30);
+    private static final long MIN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+    // Below this correlation of files and bytes, the two costs can be told apart
+    private static final double MAX_CORRELATION_SQ = 0.999;
+
+    private final LongSupplier files, bytes, clock;
+    private boolean started;
+    private long lastFiles, lastBytes, lastTime;
+    // Decayed sums of the products of files (f), bytes (b) and nanos (t) of each interval
+    private double ff, fb, bb, tf, tb;
+
+    CostModel(LongSupplier files, LongSupplier bytes) {
+        this(files, bytes, System::nanoTime);
+    }
+
+    CostModel(LongSupplier files, LongSupplier bytes, LongSupplier clock) {
+        this.files = files;
+        this.bytes = bytes;
+        this.clock = clock;
+    }
+
+    synchronized void start() {
+        lastTime = clock.getAsLong();
+        lastFiles = files.getAsLong();
+        lastBytes = bytes.getAsLong();
+        ff = fb = bb = tf = tb = 0;
+        started = true;
+    }
+
+    /**
+     * -1 if not known (yet).
+     */
+    synchronized int secondsRemaining(long filesLeft, long bytesLeft) {
+        if (filesLeft <= 0 && bytesLeft <= 0)
+            return 0;
+        if (!started)
+            return -1;
+        sample();
+
+        double perFile = -1, perByte = -1;
+        double det = ff * bb - fb * fb;
+        if (det > (1 - MAX_CORRELATION_SQ) * ff * bb) {
+            perFile = (tf * bb - tb * fb) / det;
+            perByte = (tb * ff - tf * fb) / det;
+        }
+        if (perFile < 0 || perByte < 0) {
+            // All the files alike so far (or noise): charge everything to one of the two
+            if (bb > 0) {
+                perFile = 0;
+                perByte = tb / bb;
+            } else if (ff > 0) {
+                perFile = tf / ff;
+                perByte = 0;
+            } else
+                return -1;
+        }
+        double ret = (perFile * Math.max(0, filesLeft) + perByte * Math.max(0, bytesLeft)) / 1e9;
+        return (int) Math.min(Integer.MAX_VALUE, Math.ceil(ret));
+    }
+
+    private void sample() {
+        long now = clock.getAsLong();
+        long elapsed = now - lastTime;
+        if (elapsed < MIN_INTERVAL)
+            return;
+        long f = files.getAsLong(), b = bytes.getAsLong();
+        double df = f - lastFiles, db = b - lastBytes;
+        double decay = Math.exp(-elapsed / TAU);
+        ff = ff * decay + df * df;
+        fb = fb * decay + df * db;
+        bb = bb * decay + db * db;
+        tf = tf * decay + elapsed * df;
+        tb = tb * decay + elapsed * db;
+        lastFiles = f;
+        lastBytes = b;
+        lastTime = now;
+    }
+}
@@ -0,0 +1,341 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import eu.germanorizzo.proj.mus.internals.FileList.Info;
+import eu.germanorizzo.proj.mus.utils.HashContext;
+import eu.germanorizzo.proj.mus.utils.Throttle;
+
+import java.lang.reflect.Method;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * A work queue for the files on a single device (FileStore), drained by its own workers.
+ */
+class DeviceQueue {
+    private static final int QUEUE_SIZE = 1024;
+    private static final Info END_OF_QUEUE = new Info(null, -1);
+    // Wakes up an idle worker, to help with the chunks of a file
+    private static final Info HELP = new Info(null, -1);
+    private static final Path SYS_BLOCK = Paths.get("/sys/class/block");
+    // Thread.ofVirtual() and the Thread.Builder methods, or null before Java 21
+    private static final Method OF_VIRTUAL, BUILDER_NAME, BUILDER_UNSTARTED;
+
+    static {
+        Method ofVirtual = null, name = null, unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = name;
+        BUILDER_UNSTARTED = unstarted;
+    }
+
+    final String name;
+    final boolean rotational;
+    // The number of workers; with a tuner, it's the maximum and some of them may be idle
+    final int concurrency;
+    final boolean virtual;
+    final ConcurrencyTuner tuner;
+    final AtomicInteger totFiles = new AtomicInteger();
+    final LongAdder doneFiles = new LongAdder();
+    final AtomicLong totSize = new AtomicLong();
+    // Updated at each read by all the workers: striped
+    final LongAdder sizeProcessed = new LongAdder();
+    final IntConsumer onAdvancement;
+    // Of each worker, for monitoring
+    final List<Worker> workerStats = new CopyOnWriteArrayList<>();
+    final RateTracker bytesRate = new RateTracker(sizeProcessed::sum);
+    final RateTracker filesRate = new RateTracker(doneFiles::sum);
+    private final CostModel cost = new CostModel(doneFiles::sum, sizeProcessed::sum);
+
+    private final BlockingDeque<Info> queue = new LinkedBlockingDeque<>(QUEUE_SIZE);
+    private final Queue<ChunkedFile> chunked = new ConcurrentLinkedQueue<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final Hasher hasher;
+    // Shared by all the devices
+    private final Throttle throttle;
+    private final boolean direct;
+    // Of the direct reads, for the HashContexts
+    private final int alignment;
+    // Workers allowed to work at once
+    private final Permits permits;
+    private volatile int limit;
+    // When each worker did its last work, from start(): the time they were idle waiting for
+    // the slowest
+    private long started;
+    private final AtomicInteger lastWorkCount = new AtomicInteger();
+    private final AtomicLong lastWorkSum = new AtomicLong();
+    private final AtomicLong lastWorkMax = new AtomicLong(Long.MIN_VALUE);
+
+    DeviceQueue(String name, boolean rotational, int concurrency, boolean virtual,
+                boolean adaptive, Throttle throttle, boolean direct, int alignment,
+                IntConsumer onAdvancement, Hasher hasher) {
+        this.name = name;
+        this.rotational = rotational;
+        this.concurrency = concurrency;
+        this.virtual = virtual && isVirtualSupported();
+        this.tuner = adaptive ? new ConcurrencyTuner(this, concurrency) : null;
+        this.limit = adaptive ? Math.min(ConcurrencyTuner.START_LEVEL, concurrency) : concurrency;
+        this.permits = new Permits(limit);
+        this.hasher = hasher;
+        this.throttle = throttle;
+        this.direct = direct;
+        this.alignment = alignment;
+        this.onAdvancement = (n) -> {
+            sizeProcessed.add(n);
+            onAdvancement.accept(n);
+        };
+    }
+
+    void account(Info info) {
+        totFiles.incrementAndGet();
+        totSize.addAndGet(info.getSize());
+    }
+
+    void put(Info info) throws InterruptedException {
+        queue.put(info);
+    }
+
+    synchronized void start() {
+        started = System.nanoTime();
+        bytesRate.start();
+        filesRate.start();
+        cost.start();
+        for (int i = 0; i < concurrency; i++) {
+            Worker stats = new Worker("Mus worker #" + i + " (" + name + ")");
+            workerStats.add(stats);
+            Thread worker = newThread(() -> {
+                HashContext ctx = new HashContext(!virtual);
+                ctx.setThrottle(throttle);
+                ctx.setDirect(direct);
+                ctx.setAlignment(alignment);
+                // from when it's first allowed to work: a worker that is never given any
+                // is idle all the time
+                long lastWork = 0;
+                try {
+                    Info info;
+                    while (true) {
+                        permits.acquire();
+                        try {
+                            boolean helped = help(ctx, stats);
+                            if (lastWork == 0 || helped)
+                                lastWork = System.nanoTime();
+                            if ((info = queue.take()) == END_OF_QUEUE)
+                                break;
+                            if (info != HELP) {
+                                stats.begin(info);
+                                stats.files++;
+                                try {
+                                    hasher.hash(this, ctx, info, stats.onAdvancement);
+                                } finally {
+                                    stats.end();
+                                }
+                                lastWork = System.nanoTime();
+                            }
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                } catch (InterruptedException ignored) {
+                }
+                if (lastWork != 0) {
+                    lastWorkCount.incrementAndGet();
+                    lastWorkSum.addAndGet(lastWork - started);
+                    lastWorkMax.accumulateAndGet(lastWork - started, Math::max);
+                }
+            }, stats.name);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    private Thread newThread(Runnable task, String name) {
+        if (virtual)
+            try {
+                Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Can't create a virtual thread", e);
+            }
+        Thread ret = new Thread(task, name);
+        ret.setDaemon(true);
+        return ret;
+    }
+
+    // Virtual threads need Java 21
+    static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    // Changes the number of workers that can work at once, up to concurrency
+    synchronized void setLimit(int limit) {
+        if (limit > this.limit)
+            permits.release(limit - this.limit);
+        else
+            permits.reducePermits(this.limit - limit);
+        this.limit = limit;
+    }
+
+    /**
+     * Makes the chunks of a file available to all the workers of this device.
+     */
+    void share(ChunkedFile file) {
+        chunked.add(file);
+        for (int i = 1; i < Math.min(limit, file.getChunks()); i++)
+            if (!queue.offerFirst(HELP))
+                break;
+    }
+
+    // Returns true if there was something to do
+    private boolean help(HashContext ctx, Worker stats) {
+        boolean ret = false;
+        ChunkedFile file;
+        while ((file = chunked.peek()) != null) {
+            stats.begin(file.info);
+            try {
+                file.work(ctx, stats.onAdvancement);
+            } finally {
+                stats.end();
+            }
+            if (file.isExhausted())
+                chunked.remove(file);
+            ret = true;
+        }
+        return ret;
+    }
+
+    // By the recent costs per file and per byte; -1 if not known
+    int getSecondsRemaining() {
+        return cost.secondsRemaining(totFiles.get() - doneFiles.sum(),
+                totSize.get() - sizeProcessed.sum());
+    }
+
+    /**
+     * After stop(), the sum of the time that the workers spent idle at the end, waiting for
+     * the last one to finish; in milliseconds.
+     */
+    long getTailIdle() {
+        int count = lastWorkCount.get();
+        return count == 0 ? 0 : (count * lastWorkMax.get() - lastWorkSum.get()) / 1000000;
+    }
+
+    // Lets the workers drain the queue, then waits for them
+    synchronized void stop() throws InterruptedException {
+        for (int i = 0; i < workers.size(); i++)
+            queue.put(END_OF_QUEUE);
+        for (Thread worker : workers)
+            worker.join();
+        workers.clear();
+    }
+
+    synchronized void abort() throws InterruptedException {
+        queue.clear();
+        stop();
+    }
+
+    @SuppressWarnings("serial")
+    private static class Permits extends Semaphore {
+        Permits(int permits) {
+            super(permits);
+        }
+
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+    interface Hasher {
+        void hash(DeviceQueue device, HashContext ctx, Info info, IntConsumer onAdvancement);
+    }
+
+    /* What a worker is doing, for monitoring: written only by its thread, read by others.
+     * The time is the one spent working, to give its throughput. */
+    class Worker {
+        final String name;
+        final IntConsumer onAdvancement;
+        volatile Info current;
+        volatile long bytes, files;
+        private volatile long busyNanos, busySince;
+
+        Worker(String name) {
+            this.name = name;
+            this.onAdvancement = (n) -> {
+                bytes += n;
+                DeviceQueue.this.onAdvancement.accept(n);
+            };
+        }
+
+        void begin(Info info) {
+            current = info;
+            busySince = System.nanoTime();
+        }
+
+        void end() {
+            busyNanos += System.nanoTime() - busySince;
+            busySince = 0;
+            current = null;
+        }
+
+        long getBusyNanos() {
+            long since = busySince;
+            return busyNanos + (since == 0 ? 0 : System.nanoTime() - since);
+        }
+    }
+
+    /* Linux only: reads the "rotational" flag of the block device (or of the disk, for a
+     * partition) from sysfs. Returns false when it can't be determined. */
+    static boolean isRotational(FileStore store) {
+        String dev = store.name();
+        if (!dev.startsWith("/dev/"))
+            return false;
+        try {
+            Path block = SYS_BLOCK.resolve(Paths.get(dev).toRealPath().getFileName()).toRealPath();
+            for (Path p : new Path[]{block, block.getParent()}) {
+                Path flag = p.resolve("queue/rotational");
+                if (Files.isReadable(flag))
+                    return Files.readAllLines(flag).get(0).trim().equals("1");
+            }
+        } catch (Exception ignored) {
+        }
+        return false;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events of the phases of a run. They're disabled by default (and then
+ * cost next to nothing): enable them in the recording settings, or all of them with i.e.
+ * -XX:StartFlightRecording:settings=default,+eu.germanorizzo.proj.mus.FileHash#enabled=true
+ */
+final class Events {
+    private static final String PREFIX = "eu.germanorizzo.proj.mus.";
+
+    private Events() {
+    }
+
+    @Name(PREFIX + "Walk")
+    @Label("Walk")
+    @Description("Walking the directory trees to checksum")
+    @Category("Mus")
+    @Enabled(false)
+    @StackTrace(false)
+    static class Walk extends Event {
+        @Label("Roots")
+        String roots;
+        @Label("Files")
+        int files;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name(PREFIX + "ChecksumLoad")
+    @Label("Checksum File Load")
+    @Description("Reading the entries of a checksum file")
+    @Category("Mus")
+    @Enabled(false)
+    @StackTrace(false)
+    static class ChecksumLoad extends Event {
+        @Label("File")
+        String file;
+        @Label("Entries")
+        int entries;
+        @Label("Format")
+        int format;
+    }
+
+    @Name(PREFIX + "Sort")
+    @Label("Sort")
+    @Description("Sorting the file list by path")
+    @Category("Mus")
+    @Enabled(false)
+    @StackTrace(false)
+    static class Sort extends Event {
+        @Label("Entries")
+        int entries;
+    }
+
+    @Name(PREFIX + "FileHash")
+    @Label("File Hash")
+    @Description("Checksumming a file; the reads of memory-mapped files count as digesting")
+    @Category("Mus")
+    @Enabled(false)
+    @StackTrace(false)
+    static class FileHash extends Event {
+        @Label("Path")
+        String path;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Open Time")
+        @Timespan
+        long openTime;
+        @Label("Read Time")
+        @Timespan
+        long readTime;
+        @Label("Digest Time")
+        @Timespan
+        long digestTime;
+        @Label("Result")
+        String result;
+    }
+
+    @Name(PREFIX + "ChunkHash")
+    @Label("Chunk Hash")
+    @Description("Checksumming a chunk of a big file, that more workers share")
+    @Category("Mus")
+    @Enabled(false)
+    @StackTrace(false)
+    static class ChunkHash extends Event {
+        @Label("Path")
+        String path;
+        @Label("Chunk")
+        int chunk;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Read Time")
+        @Timespan
+        long readTime;
+        @Label("Digest Time")
+        @Timespan
+        long digestTime;
+    }
+
+    @Name(PREFIX + "ManifestWrite")
+    @Label("Checksum File Write")
+    @Description("Writing the checksum file")
+    @Category("Mus")
+    @Enabled(false)
+    @StackTrace(false)
+    static class ManifestWrite extends Event {
+        @Label("Entries")
+        int entries;
+        @Label("Binary")
+        boolean binary;
+    }
+}
@@ -17,49 +17,300 @@
 package eu.germanorizzo.proj.mus.internals;
 
 import eu.germanorizzo.proj.mus.Mus;
+import eu.germanorizzo.proj.mus.utils.HashContext;
 import eu.germanorizzo.proj.mus.utils.MiscUtils;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.IntConsumer;
 
 public class FileList {
     public static final String LAST_LINE_SUFFIX = "\tThis file";
     public static final String EXTENSION = "mu5";
-    private static final String FIRST_LINE = "# File created with %s <https://github.com/proofrock/Mus>";
-    private final List<Info> list = Collections.synchronizedList(new ArrayList<>());
+    // Binary format, see BinaryManifestWriter
+    public static final String BINARY_EXTENSION = "mu5b";
+    static final String FIRST_LINE = "# File created with %s <https://github.com/proofrock/Mus>";
+    // Formats 1 and 2 are told apart by the length of the checksums; from format 3 on, the
+    // format is declared in the second line.
+    static final String FORMAT_LINE_PREFIX = "# Format: ";
+    static final int FIRST_FORMAT_WITH_HEADER = 3;
+
+    /* The entries are stored by columns (see Segment), in the order they are added; an entry
+     * is identified by its slot there, and Info is just a view on it. The paths are split in
+     * a directory and a name, both kept once in a table. While building, entries are only
+     * appended; seal() sorts them once, into "order", used for random access. */
+    private static final int SEGMENT_BITS = 14;
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+    // Flags in the state byte: the entry has a checksum; how its file was last read
+    private static final int HAS_DIGEST = 0x10;
+    private static final int READ_PATH_SHIFT = 5;
+    private static final int READ_PATH_MASK = 0x60;
+    private static final int STATE_MASK = 0x0F;
+    private static final State[] STATES = State.values();
+    private static final ReadPath[] READ_PATHS = ReadPath.values();
+
+    private volatile Segment[] segments = new Segment[0];
+    private volatile int count;
+    private int digestLen = -1;
+    // Replaced when they grow, so that they can be read without locking
+    private volatile Path[] dirs = new Path[16];
+    // As Paths: a name that isn't valid in the charset of the platform doesn't survive a
+    // conversion to String and back
+    private volatile Path[] names = new Path[1024];
+    private int dirCount, nameCount;
+    private Map<Path, Integer> dirIds = new HashMap<>();
+    private Map<Path, Integer> nameIds = new HashMap<>();
+    // Few, hopefully: not worth a column
+    private final Map<Integer, String> errors = new ConcurrentHashMap<>();
+    // Metadata of the files when they started to be hashed, for the HashCache
+    private final Map<Integer, String> cacheStamps = new ConcurrentHashMap<>();
+
+    private final List<Path> roots = new ArrayList<>();
+    private volatile int[] order;
+    // For each directory, its path relative to commonAncestor, '/' separated, ending with '/'
+    private String[] relativeDirs;
     private Path commonAncestor;
-
-    public Info addPath(Path path) {
-        if (commonAncestor == null)
-            commonAncestor = path.getParent();
-        else {
-            while (!path.startsWith(commonAncestor))
-                commonAncestor = commonAncestor.getParent();
+    // If set, the relative paths are computed from here
+    private Path base;
+    private volatile int format = Mus.FORMAT;
+    private volatile HashCache cache;
+    private final AtomicInteger cacheHits = new AtomicInteger();
+
+    private static class Segment {
+        final int[] dir = new int[SEGMENT_SIZE];
+        final int[] name = new int[SEGMENT_SIZE];
+        final long[] size = new long[SEGMENT_SIZE];
+        final byte[] state = new byte[SEGMENT_SIZE];
+        // raw, digestLen bytes per entry
+        final byte[] digest;
+        // From the walk, for Walker.physicalOrder(); null until the first one is set, 0 if
+        // not known
+        long[] inode;
+
+        Segment(int digestLen) {
+            digest = new byte[SEGMENT_SIZE * digestLen];
         }
-        if (Files.isDirectory(path))
+    }
+
+    public synchronized Info addPath(Path path) {
+        if (order != null)
+            throw new IllegalStateException("This FileList is already sealed");
+
+        if (Files.isDirectory(path)) {
+            roots.add(path);
             return null;
+        }
+
+        return addFile(path);
+    }
+
+    // As addPath(), for a path known to be a file
+    synchronized Info addFile(Path path) {
+        if (order != null)
+            throw new IllegalStateException("This FileList is already sealed");
+
+        int slot = count;
+        if ((slot >>> SEGMENT_BITS) == segments.length) {
+            if (digestLen < 0)
+                digestLen = Mus.ALGO_LEN_BY_FORMAT[format] / 2;
+            Segment[] grown = Arrays.copyOf(segments, segments.length + 1);
+            grown[segments.length] = new Segment(digestLen);
+            segments = grown;
+        }
+        Segment seg = segments[slot >>> SEGMENT_BITS];
+        int off = slot & SEGMENT_MASK;
+        seg.dir[off] = dirId(path.getParent());
+        seg.name[off] = nameId(path.getFileName());
+        seg.size[off] = -1;
+        seg.state[off] = (byte) State.NULL.ordinal();
+        errors.remove(slot);
+        count = slot + 1;
+        return new Info(this, slot);
+    }
+
+    private int dirId(Path dir) {
+        Integer ret = dirIds.get(dir);
+        if (ret != null)
+            return ret;
+        if (dirCount == dirs.length)
+            dirs = Arrays.copyOf(dirs, dirCount * 2);
+        dirs[dirCount] = dir;
+        dirIds.put(dir, dirCount);
+        return dirCount++;
+    }
+
+    private int nameId(Path name) {
+        Integer ret = nameIds.get(name);
+        if (ret != null)
+            return ret;
+        if (nameCount == names.length)
+            names = Arrays.copyOf(names, nameCount * 2);
+        names[nameCount] = name;
+        nameIds.put(name, nameCount);
+        return nameCount++;
+    }
+
+    /**
+     * Ends the building phase: sorts the entries and computes the common ancestor, once.
+     * Subsequent calls do nothing.
+     */
+    public synchronized void seal() {
+        if (order != null)
+            return;
+
+        Events.Sort event = new Events.Sort();
+        event.begin();
+
+        int[] sorted = new int[count];
+        for (int i = 0; i < sorted.length; i++)
+            sorted[i] = i;
+        Path[] probes = new Path[dirCount];
+        for (int i = 0; i < dirCount; i++)
+            probes[i] = dirs[i].resolve("_");
+        mergeSort(sorted, new int[sorted.length], 0, sorted.length, probes);
+        event.entries = count;
+        event.commit();
+
+        boolean[] used = new boolean[dirCount];
+        for (int slot : sorted)
+            used[dir(slot)] = true;
+        Path ancestor = null;
+        for (Path root : roots)
+            ancestor = ancestor == null ? root.getParent() : commonAncestor(ancestor, root);
+        for (int i = 0; i < dirCount; i++)
+            if (used[i])
+                ancestor = ancestor == null ? dirs[i] : commonAncestor(ancestor, dirs[i]);
+        commonAncestor = base != null ? base : ancestor;
+
+        relativeDirs = new String[dirCount];
+        for (int i = 0; i < dirCount; i++)
+            if (used[i]) {
+                String rel = commonAncestor.relativize(dirs[i]).toString().replace('\\', '/');
+                relativeDirs[i] = rel.isEmpty() ? "" : rel + '/';
+            }
+
+        dirIds = null;
+        nameIds = null;
+        roots.clear();
+        order = sorted;
+    }
 
-        Info info = new Info(path);
-        list.add(info);
-        Collections.sort(list);
-        return info;
+    private static Path commonAncestor(Path ancestor, Path path) {
+        while (!path.startsWith(ancestor))
+            ancestor = ancestor.getParent();
+        return ancestor;
+    }
+
+    /* As Path.compareTo() on the full paths (bytes on Unix, ignoring case on Windows), but
+     * building them only when a directory is inside the other. Else, the two differ before
+     * the end of the shorter "directory + separator", so any name (the probes) will do. */
+    private int compare(int a, int b, Path[] probes) {
+        int da = dir(a), db = dir(b);
+        if (da == db)
+            return fileName(a).compareTo(fileName(b));
+        if (dirs[da].startsWith(dirs[db]) || dirs[db].startsWith(dirs[da]))
+            return dirs[da].resolve(fileName(a)).compareTo(dirs[db].resolve(fileName(b)));
+        return probes[da].compareTo(probes[db]);
+    }
+
+    private void mergeSort(int[] a, int[] tmp, int from, int to, Path[] probes) {
+        if (to - from < 2)
+            return;
+        int mid = (from + to) >>> 1;
+        mergeSort(a, tmp, from, mid, probes);
+        mergeSort(a, tmp, mid, to, probes);
+        if (compare(a[mid - 1], a[mid], probes) <= 0)
+            return;
+        System.arraycopy(a, from, tmp, from, to - from);
+        for (int i = from, l = from, r = mid; i < to; i++)
+            a[i] = r >= to || (l < mid && compare(tmp[l], tmp[r], probes) <= 0)
+                    ? tmp[l++] : tmp[r++];
+    }
+
+    // By slot, in the order the entries were added; also before sealing
+    Info getEntry(int slot) {
+        return new Info(this, slot);
+    }
+
+    // Drops the entries added after the first "size" ones
+    synchronized void truncate(int size) {
+        if (order != null)
+            throw new IllegalStateException("This FileList is already sealed");
+        count = size;
+    }
+
+    synchronized void setBase(Path base) {
+        this.base = base;
+    }
+
+    void setCache(HashCache cache) {
+        this.cache = cache;
+    }
+
+    // Files whose checksum was taken from the cache, without reading them
+    public int getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    public synchronized void setFormat(int format) {
+        if (digestLen >= 0 && Mus.ALGO_LEN_BY_FORMAT[format] / 2 != digestLen)
+            throw new IllegalStateException("This FileList already has checksums of format "
+                    + this.format);
+        this.format = format;
+    }
+
+    /**
+     * Returns the format declared in a line of a checksum file, or -1 if it's not a
+     * format line.
+     */
+    public static int parseFormatLine(String line) {
+        if (!line.startsWith(FORMAT_LINE_PREFIX))
+            return -1;
+        try {
+            return Integer.parseInt(line.substring(FORMAT_LINE_PREFIX.length()).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public boolean isSealed() {
+        return order != null;
     }
 
     public int size() {
-        return list.size();
+        int[] order = this.order;
+        return order != null ? order.length : count;
+    }
+
+    private String getRelativePath(int idx) {
+        int slot = order[idx];
+        return relativeDirs[dir(slot)] + name(slot);
     }
 
-    private String getRelativePath(int index) {
-        return commonAncestor.relativize(list.get(index).path).toString();
+    // The first element of the relative path
+    private String getFirstSubNode(int idx) {
+        int slot = order[idx];
+        String dir = relativeDirs[dir(slot)];
+        return dir.isEmpty() ? name(slot) : dir.substring(0, dir.indexOf('/'));
     }
 
     //public void clear() {
@@ -67,8 +318,31 @@ public class FileList {
     //    commonAncestor = null;
     //}
 
-    public Info getFileInfo(int index) {
-        return list.get(index);
+    public Info getFileInfo(int idx) {
+        int[] order = this.order;
+        if (order == null)
+            throw new IllegalStateException("This FileList is not sealed yet");
+        return new Info(this, order[idx]);
+    }
+
+    // The index of an entry, or -1 if not sealed yet; the entries are sorted as their paths
+    public int indexOf(Info info) {
+        int[] order = this.order;
+        if (order == null)
+            return -1;
+        Path path = info.getPath();
+        int lo = 0, hi = order.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = new Info(this, order[mid]).getPath().compareTo(path);
+            if (c == 0)
+                return mid;
+            if (c < 0)
+                lo = mid + 1;
+            else
+                hi = mid - 1;
+        }
+        return -1;
     }
 
     public Path getCommonAncestor() {
@@ -76,130 +350,386 @@ public class FileList {
     }
 
     public boolean isEmpty() {
-        return list.isEmpty();
+        return size() == 0;
     }
 
     public String getChecksumFileNamePreset() {
+        return getChecksumFileNamePreset(false);
+    }
+
+    public String getChecksumFileNamePreset(boolean binary) {
+        String ext = binary ? BINARY_EXTENSION : EXTENSION;
         if (isEmpty()) {// Shouldn't happen
             if (commonAncestor == null)
-                return "Checksum." + EXTENSION;
-            return commonAncestor.getFileName().toString() + '.' + EXTENSION;
+                return "Checksum." + ext;
+            return commonAncestor.getFileName().toString() + '.' + ext;
         }
-        Path firstSubNode = commonAncestor.relativize(list.get(0).path).getName(0);
-        for (int i = 1; i < list.size(); i++) {
-            Path oFirstSubNode = commonAncestor.relativize(list.get(i).path).getName(0);
-            if (!oFirstSubNode.startsWith(firstSubNode))
-                return commonAncestor.getFileName().toString() + '.' + EXTENSION;
-        }
-        return firstSubNode.toString() + '.' + EXTENSION;
+        String firstSubNode = getFirstSubNode(0);
+        for (int i = 1; i < size(); i++)
+            if (!getFirstSubNode(i).equals(firstSubNode))
+                return commonAncestor.getFileName().toString() + '.' + ext;
+        return firstSubNode + '.' + ext;
     }
 
     public void writeToFile(OutputStream os) throws IOException {
-        /* File format:
-         * # disclaimer line
-         * Checksum<TAB>File path
-         * Mus file checksum<TAB>Fixed string ("This file")
-         */
-        StringBuilder sb = new StringBuilder(String.format(FIRST_LINE, Mus.HEADER_STRING));
-        sb.append(MiscUtils.CRLF);
-        for (int i = 0; i < list.size(); i++) {
-            Info info = getFileInfo(i);
-            if (info.state == State.OK)
-                sb.append(info.checksum);
-            else
-                sb.append(info.error);
-            sb.append(MiscUtils.TAB);
-            sb.append(info.size);
-            sb.append(MiscUtils.TAB);
-            String fn = getRelativePath(i);
-            fn = fn.replace('\\', '/');
-            sb.append(fn);
-            sb.append(MiscUtils.CRLF);
+        writeToFile(os, false);
+    }
+
+    public void writeToFile(OutputStream os, boolean binary) throws IOException {
+        Events.ManifestWrite event = new Events.ManifestWrite();
+        event.begin();
+        ManifestWriter w = binary ? new BinaryManifestWriter(os, format)
+                : new TextManifestWriter(os, format);
+        for (int i = 0; i < size(); i++) {
+            int slot = order[i];
+            boolean ok = state(slot) == State.OK;
+            w.add(getRelativePath(i), ok ? digest(slot) : null, ok ? null : errors.get(slot),
+                    size(slot));
         }
-        byte[] toWrite = sb.toString().getBytes(MiscUtils.UTF8);
-        String checksum;
-        try (InputStream is = new ByteArrayInputStream(toWrite)) {
-            checksum = MiscUtils.computeChecksum(Mus.FORMAT, is, null);
+        w.finish();
+        event.entries = size();
+        event.binary = binary;
+        event.commit();
+    }
+
+    public static boolean isBinary(File checksumFile) {
+        return checksumFile.getName().endsWith('.' + BINARY_EXTENSION);
+    }
+
+    /**
+     * Converts a checksum file from text to binary, or vice versa, as told by the
+     * extensions. The paths stay relative, so it should stay in the same directory.
+     */
+    public static void convert(File from, File to)
+            throws IOException, ChecksumVerificationFailedException {
+        Path parent = from.getAbsoluteFile().toPath().getParent();
+        BinaryManifestReader binary = isBinary(from) ? new BinaryManifestReader(from) : null;
+        ManifestReader text = binary == null ? new ManifestReader(from) : null;
+        int format = binary != null ? binary.getFormat() : text.readFormat();
+        try (OutputStream os = new FileOutputStream(to)) {
+            ManifestWriter w = isBinary(to) ? new BinaryManifestWriter(os, format)
+                    : new TextManifestWriter(os, format);
+            ManifestReader.EntryConsumer c = (f, path, checksum, error, size) ->
+                    w.add(parent.relativize(path).toString().replace('\\', '/'), checksum,
+                            error, size);
+            if (binary != null)
+                binary.read(c);
+            else
+                text.read(c);
+            w.finish();
         }
-        os.write(toWrite);
-        os.write(checksum.getBytes(MiscUtils.UTF8));
-        os.write(LAST_LINE_SUFFIX.getBytes(MiscUtils.UTF8));
     }
 
     public CheckStatus calcChecksum(int format, int idx, IntConsumer onAdvancement) {
-        Info i = list.get(idx);
-
-        if (i.state == FileList.State.ERR)
-            return CheckStatus.KO;
+        return calcChecksum(format, getFileInfo(idx), new HashContext(), onAdvancement);
+    }
 
-        i.state = State.WORKING;
-        i.error = null;
+    // Can be called before sealing, on an Info returned by addPath()
+    public CheckStatus calcChecksum(int format, Info i, HashContext ctx,
+                                    IntConsumer onAdvancement) {
+        CheckStatus ret = startChecksum(format, i, onAdvancement);
+        if (ret != null)
+            return ret;
+
+        Events.FileHash event = new Events.FileHash();
+        if (!event.isEnabled())
+            return calcChecksum(format, i, ctx, onAdvancement, null);
+        event.begin();
+        ctx.startTiming();
+        ret = calcChecksum(format, i, ctx, onAdvancement, event);
+        ctx.stopTiming();
+        event.path = i.getPath().toString();
+        event.bytes = i.getSize();
+        event.readTime = ctx.getReadNanos();
+        event.digestTime = ctx.getDigestNanos();
+        event.result = ret.name();
+        event.commit();
+        return ret;
+    }
 
-        if (!Files.exists(i.path)) {
-            i.state = FileList.State.ERR;
-            i.error = "File doesn't exist anymore";
-            return CheckStatus.MISSING;
+    private CheckStatus calcChecksum(int format, Info i, HashContext ctx,
+                                     IntConsumer onAdvancement, Events.FileHash event) {
+        CheckStatus ret;
+        long start = event == null ? 0 : System.nanoTime();
+        // a single open tells if it's missing, and its size
+        try (FileChannel ch = ctx.open(i.getPath())) {
+            if (event != null)
+                event.openTime = System.nanoTime() - start;
+            setReadPath(i, ctx.isOpenedDirect());
+            ret = opened(i, ch.size());
+            if (ret != null)
+                return ret;
+            ctx.hash(format, ch, onAdvancement);
+        } catch (Exception e) {
+            return failChecksum(i, e);
         }
 
-        boolean isVerification = i.checksum != null;
+        return endChecksum(format, i, ctx);
+    }
 
-        try {
-            if (isVerification && (Files.size(i.path) != i.size)) {
-                i.state = State.ERR;
-                i.error = "File size mismatch";
-                return CheckStatus.KO;
-            }
+    /* calcChecksum() is split in phases, so that the Walker can hash the chunks of a file on
+     * more threads: startChecksum() returns null if the file is to be hashed; then, once it's
+     * open, opened() returns null if it can be read; then either endChecksum() or
+     * failChecksum() is called with the result. */
 
-            String checksum;
-            try (InputStream is = Files.newInputStream(i.path)) {
-                checksum = MiscUtils.computeChecksum(format, is, onAdvancement);
-            }
+    CheckStatus startChecksum(int format, Info i, IntConsumer onAdvancement) {
+        int slot = i.slot;
+        if (state(slot) == FileList.State.ERR)
+            return CheckStatus.KO;
 
-            if (!isVerification)
-                i.checksum = checksum;
-            else if (!checksum.equals(i.checksum)) {
-                i.state = State.ERR;
-                i.error = "Corrupted file! (" + checksum + " instead of " + i.checksum + ")";
-                return CheckStatus.KO;
+        setState(slot, State.WORKING);
+        errors.remove(slot);
+
+        HashCache cache = this.cache;
+        if (cache != null)
+            try {
+                // taken before reading the file, so that a change while hashing invalidates it
+                Path path = i.getPath();
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                CheckStatus ret = opened(i, attrs.size());
+                if (ret != null)
+                    return ret;
+                String stamp = HashCache.stamp(attrs);
+                cacheStamps.put(slot, stamp);
+                String cached = cache.trusted ? cache.get(format, path, stamp) : null;
+                byte[] raw = cached == null ? null : MiscUtils.armored2bytes(cached);
+                if (raw != null && raw.length == digestLen) {
+                    cacheStamps.remove(slot);
+                    cacheHits.incrementAndGet();
+                    if (onAdvancement != null)
+                        for (long left = size(slot); left > 0; left -= Integer.MAX_VALUE)
+                            onAdvancement.accept((int) Math.min(left, Integer.MAX_VALUE));
+                    Segment seg = segment(slot);
+                    int off = (slot & SEGMENT_MASK) * digestLen;
+                    if (!hasChecksum(slot))
+                        setDigest(slot, raw);
+                    else if (!Arrays.equals(seg.digest, off, off + digestLen, raw, 0, digestLen))
+                        return corrupted(slot, cached);
+                    setState(slot, State.OK);
+                    return CheckStatus.OK;
+                }
+            } catch (Exception e) {
+                return failChecksum(i, e);
             }
 
-            i.state = State.OK;
+        return null;
+    }
 
-        } catch (Exception e) {
-            i.error = "ERROR [" + e.getClass().getName() + "]: " + e.getMessage();
-            i.state = State.ERR;
-            return CheckStatus.KO;
-        }
+    /* With the actual size of the file: returns null if it's to be read. When creating, the
+     * size is updated, as the file could have changed since it was found. */
+    CheckStatus opened(Info i, long size) {
+        int slot = i.slot;
+        if (!hasChecksum(slot))
+            segment(slot).size[slot & SEGMENT_MASK] = size;
+        else if (size != size(slot))
+            return error(slot, "File size mismatch", CheckStatus.KO);
+        return null;
+    }
 
+    CheckStatus endChecksum(int format, Info i, HashContext ctx) {
+        int slot = i.slot;
+        Segment seg = segment(slot);
+        int off = (slot & SEGMENT_MASK) * digestLen;
+        if (!hasChecksum(slot)) {
+            ctx.getDigest(seg.digest, off);
+            seg.state[slot & SEGMENT_MASK] |= HAS_DIGEST;
+        } else if (!ctx.matches(seg.digest, off))
+            return corrupted(slot, ctx.toHex());
+
+        HashCache cache = this.cache;
+        String stamp = cache == null ? null : cacheStamps.remove(slot);
+        if (stamp != null)
+            cache.put(format, i.getPath(), stamp, checksum(slot));
+
+        setState(slot, State.OK);
         return CheckStatus.OK;
     }
 
+    private CheckStatus corrupted(int slot, String actual) {
+        cacheStamps.remove(slot);
+        return error(slot, "Corrupted file! (" + actual + " instead of " + checksum(slot) + ")",
+                CheckStatus.KO);
+    }
+
+    CheckStatus failChecksum(Info i, Exception e) {
+        cacheStamps.remove(i.slot);
+        if (e instanceof NoSuchFileException)
+            return error(i.slot, "File doesn't exist anymore", CheckStatus.MISSING);
+        return error(i.slot, "ERROR [" + e.getClass().getName() + "]: " + e.getMessage(),
+                CheckStatus.KO);
+    }
+
+    private CheckStatus error(int slot, String error, CheckStatus ret) {
+        errors.put(slot, error);
+        setState(slot, State.ERR);
+        return ret;
+    }
+
+    // Column access, by slot
+
+    private Segment segment(int slot) {
+        return segments[slot >>> SEGMENT_BITS];
+    }
+
+    private int dir(int slot) {
+        return segment(slot).dir[slot & SEGMENT_MASK];
+    }
+
+    private Path fileName(int slot) {
+        return names[segment(slot).name[slot & SEGMENT_MASK]];
+    }
+
+    // For the relative paths
+    private String name(int slot) {
+        return fileName(slot).toString();
+    }
+
+    private long size(int slot) {
+        return segment(slot).size[slot & SEGMENT_MASK];
+    }
+
+    private long inode(int slot) {
+        long[] inode = segment(slot).inode;
+        return inode == null ? 0 : inode[slot & SEGMENT_MASK];
+    }
+
+    synchronized void setInode(Info i, long inode) {
+        Segment seg = segment(i.slot);
+        if (seg.inode == null)
+            seg.inode = new long[SEGMENT_SIZE];
+        seg.inode[i.slot & SEGMENT_MASK] = inode;
+    }
+
+    private State state(int slot) {
+        return STATES[segment(slot).state[slot & SEGMENT_MASK] & STATE_MASK];
+    }
+
+    private void setState(int slot, State state) {
+        byte[] states = segment(slot).state;
+        int off = slot & SEGMENT_MASK;
+        states[off] = (byte) ((states[off] & ~STATE_MASK) | state.ordinal());
+    }
+
+    private ReadPath readPath(int slot) {
+        return READ_PATHS[(segment(slot).state[slot & SEGMENT_MASK] & READ_PATH_MASK)
+                >> READ_PATH_SHIFT];
+    }
+
+    // Once the file is open
+    void setReadPath(Info i, boolean direct) {
+        setReadPath(i.slot, direct ? ReadPath.DIRECT : ReadPath.PAGE_CACHE);
+    }
+
+    private void setReadPath(int slot, ReadPath path) {
+        byte[] states = segment(slot).state;
+        int off = slot & SEGMENT_MASK;
+        states[off] = (byte) ((states[off] & ~READ_PATH_MASK) | path.ordinal() << READ_PATH_SHIFT);
+    }
+
+    private boolean hasChecksum(int slot) {
+        return (segment(slot).state[slot & SEGMENT_MASK] & HAS_DIGEST) != 0;
+    }
+
+    private String checksum(int slot) {
+        byte[] raw = digest(slot);
+        return raw == null ? null : MiscUtils.bytes2armored(raw);
+    }
+
+    private byte[] digest(int slot) {
+        if (!hasChecksum(slot))
+            return null;
+        int off = (slot & SEGMENT_MASK) * digestLen;
+        return Arrays.copyOfRange(segment(slot).digest, off, off + digestLen);
+    }
+
+    private void setDigest(int slot, byte[] raw) {
+        Segment seg = segment(slot);
+        System.arraycopy(raw, 0, seg.digest, (slot & SEGMENT_MASK) * digestLen, digestLen);
+        seg.state[slot & SEGMENT_MASK] |= HAS_DIGEST;
+    }
+
     public enum CheckStatus {OK, MISSING, KO}
 
     public enum State {
         NULL, WORKING, OK, ERR
     }
 
-    public static class Info implements Comparable<Info> {
-        public final Path path;
-        public volatile State state = State.NULL;
-        public volatile String checksum, error;
-        public volatile long size = -1;
+    // How the file was read: NONE if it wasn't (i.e. a cache hit)
+    public enum ReadPath {
+        NONE, PAGE_CACHE, DIRECT
+    }
+
+    /**
+     * A view on an entry of a FileList.
+     */
+    public static class Info {
+        private final FileList list;
+        final int slot;
+
+        Info(FileList list, int slot) {
+            this.list = list;
+            this.slot = slot;
+        }
+
+        public Path getPath() {
+            return list.dirs[list.dir(slot)].resolve(list.fileName(slot));
+        }
+
+        public State getState() {
+            return list.state(slot);
+        }
+
+        // In hex, or null if not known (yet)
+        public String getChecksum() {
+            return list.checksum(slot);
+        }
+
+        public String getError() {
+            return list.errors.get(slot);
+        }
+
+        public long getSize() {
+            return list.size(slot);
+        }
+
+        // On Unix, if found by a walk; else 0
+        long getInode() {
+            return list.inode(slot);
+        }
+
+        public ReadPath getReadPath() {
+            return list.readPath(slot);
+        }
+
+        void setSize(long size) {
+            list.segment(slot).size[slot & SEGMENT_MASK] = size;
+        }
+
+        // Raw
+        void setChecksum(byte[] checksum) {
+            if (checksum.length != list.digestLen)
+                throw new IllegalArgumentException("Invalid checksum length: " + checksum.length);
+            list.setDigest(slot, checksum);
+        }
+
+        void setError(String error) {
+            list.error(slot, error, CheckStatus.KO);
+        }
 
-        Info(Path path) {
-            this.path = path;
+        // For the entries that don't need to be checked
+        void setOk() {
+            list.setState(slot, State.OK);
         }
 
         public boolean equals(Object obj) {
             if (!(obj instanceof Info))
                 return false;
             Info i = (Info) obj;
-            return Objects.equals(state, i.state) && Objects.equals(checksum, i.checksum)
-                    && Objects.equals(error, i.error) && Objects.equals(path, i.path);
+            return list == i.list && slot == i.slot;
         }
 
-        public int compareTo(Info o) {
-            return path.compareTo(o.path);
+        public int hashCode() {
+            return slot;
         }
     }
 }
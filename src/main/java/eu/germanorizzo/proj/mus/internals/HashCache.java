@@ -0,0 +1,87 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import eu.germanorizzo.proj.mus.utils.MiscUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of the checksums, kept with each file in a user-defined extended attribute
+ * ("user.mus.&lt;format&gt;" on Linux). An entry is valid as long as the size, the
+ * modification time and the file key (device and inode, where available) of the file are
+ * the same as when it was hashed. On filesystems without extended attributes nothing is
+ * cached.
+ */
+class HashCache {
+    private static final String ATTRIBUTE_PREFIX = "mus.";
+    private static final int MAX_VALUE_LEN = 512;
+
+    // If false, the cache is only written (i.e. by a verification with full reads)
+    final boolean trusted;
+
+    HashCache(boolean trusted) {
+        this.trusted = trusted;
+    }
+
+    /**
+     * The metadata the validity of an entry depends on; to be taken before hashing the file.
+     */
+    static String stamp(BasicFileAttributes attrs) {
+        return attrs.size() + ":" + attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS) + ":"
+                + attrs.fileKey();
+    }
+
+    // Returns the cached checksum, or null if there's none or it's not valid anymore
+    String get(int format, Path file, String stamp) {
+        try {
+            UserDefinedFileAttributeView view = view(file);
+            if (view == null)
+                return null;
+            ByteBuffer buf = ByteBuffer.allocate(MAX_VALUE_LEN);
+            view.read(ATTRIBUTE_PREFIX + format, buf);
+            String value = new String(buf.array(), 0, buf.position(), MiscUtils.UTF8);
+            int pos = value.lastIndexOf(MiscUtils.TAB);
+            if (pos < 0 || !value.substring(0, pos).equals(stamp))
+                return null;
+            return value.substring(pos + 1);
+        } catch (Exception e) {
+            // i.e. no such attribute
+            return null;
+        }
+    }
+
+    void put(int format, Path file, String stamp, String checksum) {
+        try {
+            UserDefinedFileAttributeView view = view(file);
+            if (view != null)
+                view.write(ATTRIBUTE_PREFIX + format,
+                        ByteBuffer.wrap((stamp + MiscUtils.TAB + checksum).getBytes(MiscUtils.UTF8)));
+        } catch (Exception ignored) {
+            // i.e. read-only or not supported: simply not cached
+        }
+    }
+
+    private static UserDefinedFileAttributeView view(Path file) {
+        return Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+    }
+}
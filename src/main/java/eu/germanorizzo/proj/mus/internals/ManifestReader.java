@@ -0,0 +1,231 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import eu.germanorizzo.proj.mus.Mus;
+import eu.germanorizzo.proj.mus.digest.Digester;
+import eu.germanorizzo.proj.mus.utils.MiscUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Reads a checksum file in a single pass: the entries are parsed as they are read, the
+ * digest is updated along the way and the last ("This file") line is checked at the end.
+ * Memory use doesn't depend on the size of the file.
+ */
+class ManifestReader {
+    private static final int BUF_SIZE = 65536;
+    // Longer lines can't be entries (nor the last line): they're only digested
+    private static final int MAX_LINE_LEN = 1 << 20;
+    private static final byte[] LAST_LINE_SUFFIX = FileList.LAST_LINE_SUFFIX.getBytes(MiscUtils.UTF8);
+
+    private final File file;
+    private final Path parent;
+    // Until the format is known, the contents are digested with all of them
+    private final Digester[] digesters = new Digester[Mus.ALGO_BY_FORMAT.length];
+    private int format = -1;
+    private byte[] line = new byte[1024];
+    private int lineLen, lineNumber;
+    private boolean overlong;
+
+    ManifestReader(File file) {
+        this.file = file;
+        this.parent = Paths.get(file.getAbsoluteFile().getParent());
+    }
+
+    /**
+     * Reads the file, passing the entries to the consumer; returns the format. If the last
+     * line is missing, the integrity of the file can't be checked and it's read anyway.
+     */
+    int read(EntryConsumer consumer) throws IOException, ChecksumVerificationFailedException {
+        for (int i = 1; i < digesters.length; i++)
+            digesters[i] = Mus.ALGO_BY_FORMAT[i].newDigester();
+
+        byte[] buf = new byte[BUF_SIZE];
+        try (InputStream is = new FileInputStream(file)) {
+            int read;
+            while ((read = is.read(buf)) >= 0) {
+                int start = 0;
+                for (int i = 0; i < read; i++)
+                    if (buf[i] == '\n') {
+                        append(buf, start, i + 1 - start);
+                        endLine(consumer);
+                        start = i + 1;
+                    }
+                append(buf, start, read - start);
+            }
+        }
+
+        // the last line has no line terminator
+        if (!overlong && endsWith(line, lineLen, LAST_LINE_SUFFIX))
+            checkLastLine();
+        else if (lineLen > 0 || overlong)
+            endLine(consumer);
+
+        // i.e. no trailer, and only errors: the format doesn't matter
+        return format > 0 ? format : Mus.FORMAT;
+    }
+
+    /**
+     * Finds the format, reading only until it's known.
+     */
+    int readFormat() throws IOException {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), MiscUtils.UTF8))) {
+            String line, last = null;
+            for (int n = 1; (line = br.readLine()) != null; n++) {
+                int declared = n == 2 ? FileList.parseFormatLine(line) : -1;
+                if (declared > 0)
+                    return declared;
+                int pos = line.indexOf(MiscUtils.TAB);
+                if (pos > 0 && MiscUtils.countChars(line, MiscUtils.TAB) == 2
+                        && isHex(line.substring(0, pos)) && formatByLength(pos) > 0)
+                    return formatByLength(pos);
+                last = line;
+            }
+            if (last != null && last.endsWith(FileList.LAST_LINE_SUFFIX)) {
+                int ret = formatByLength(last.length() - FileList.LAST_LINE_SUFFIX.length());
+                if (ret > 0)
+                    return ret;
+            }
+            return Mus.FORMAT;
+        }
+    }
+
+    private void append(byte[] bytes, int offset, int len) {
+        if (lineLen + len > MAX_LINE_LEN) {
+            digest(line, 0, lineLen);
+            digest(bytes, offset, len);
+            lineLen = 0;
+            overlong = true;
+            return;
+        }
+        if (lineLen + len > line.length)
+            line = Arrays.copyOf(line, Math.max(lineLen + len, line.length * 2));
+        System.arraycopy(bytes, offset, line, lineLen, len);
+        lineLen += len;
+    }
+
+    private void endLine(EntryConsumer consumer) throws IOException {
+        digest(line, 0, lineLen);
+        lineNumber++;
+        if (!overlong) {
+            int len = lineLen;
+            while (len > 0 && (line[len - 1] == '\n' || line[len - 1] == '\r'))
+                len--;
+            parse(new String(line, 0, len, MiscUtils.UTF8), consumer);
+        }
+        lineLen = 0;
+        overlong = false;
+    }
+
+    private void parse(String line, EntryConsumer consumer) throws IOException {
+        if (lineNumber == 2 && format < 0) {
+            int declared = FileList.parseFormatLine(line);
+            if (declared >= Mus.ALGO_BY_FORMAT.length)
+                throw new IOException("Unsupported format " + declared + " for " + file);
+            if (declared > 0)
+                setFormat(declared);
+        }
+
+        // non-checksum lines are ignored
+        if (MiscUtils.countChars(line, MiscUtils.TAB) != 2)
+            return;
+        int pos = line.indexOf(MiscUtils.TAB);
+        String cksum = line.substring(0, pos);
+        int pos2 = line.indexOf(MiscUtils.TAB, pos + 1);
+        long size = Long.parseLong(line.substring(pos + 1, pos2));
+        Path path = parent.resolve(line.substring(pos2 + 1));
+
+        // formats that don't declare themselves are told by the length of the checksums
+        if (format < 0 && isHex(cksum))
+            setFormat(formatByLength(cksum.length()));
+        byte[] raw = format > 0 && cksum.length() == Mus.ALGO_LEN_BY_FORMAT[format]
+                ? MiscUtils.armored2bytes(cksum) : null;
+        if (raw != null)
+            consumer.accept(format, path, raw, null, size);
+        else
+            consumer.accept(format, path, null, cksum, size);
+    }
+
+    private void checkLastLine() throws ChecksumVerificationFailedException {
+        int len = lineLen - LAST_LINE_SUFFIX.length;
+        if (format < 0)
+            format = formatByLength(len);
+        if (format < 0 || Mus.ALGO_LEN_BY_FORMAT[format] != len)
+            throw new ChecksumVerificationFailedException(file.getAbsolutePath());
+        byte[] digest = new byte[digesters[format].getLength()];
+        digesters[format].digest(digest, 0);
+        String calc = MiscUtils.bytes2armored(digest);
+        if (!new String(line, 0, len, MiscUtils.UTF8).equals(calc))
+            throw new ChecksumVerificationFailedException(file.getAbsolutePath());
+    }
+
+    private void setFormat(int format) {
+        if (format < 0)
+            return;
+        this.format = format;
+        for (int i = 0; i < digesters.length; i++)
+            if (i != format)
+                digesters[i] = null;
+    }
+
+    private void digest(byte[] bytes, int offset, int len) {
+        for (Digester d : digesters)
+            if (d != null)
+                d.update(bytes, offset, len);
+    }
+
+    private static boolean endsWith(byte[] bytes, int len, byte[] suffix) {
+        if (len < suffix.length)
+            return false;
+        for (int i = 0; i < suffix.length; i++)
+            if (bytes[len - suffix.length + i] != suffix[i])
+                return false;
+        return true;
+    }
+
+    private static boolean isHex(String s) {
+        for (int i = 0; i < s.length(); i++)
+            if (Character.digit(s.charAt(i), 16) < 0)
+                return false;
+        return !s.isEmpty();
+    }
+
+    // For the formats that don't declare themselves
+    private static int formatByLength(int length) {
+        for (int i = 1; i < Mus.ALGO_LEN_BY_FORMAT.length; i++)
+            if (Mus.ALGO_LEN_BY_FORMAT[i] == length)
+                return i;
+        return -1;
+    }
+
+    interface EntryConsumer {
+        // either checksum (raw) or error (i.e. what was written instead of the checksum) is
+        // null
+        void accept(int format, Path file, byte[] checksum, String error, long size)
+                throws IOException;
+    }
+}
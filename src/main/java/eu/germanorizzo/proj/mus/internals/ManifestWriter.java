@@ -0,0 +1,33 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import java.io.IOException;
+
+/**
+ * Writes a checksum file, an entry at a time.
+ */
+interface ManifestWriter {
+    /**
+     * Either checksum (raw) or error (i.e. what's written instead of the checksum) is null.
+     * The path is relative to the checksum file, with '/' as separator.
+     */
+    void add(String path, byte[] checksum, String error, long size) throws IOException;
+
+    // Writes what's left (i.e. the checksum of the file) and flushes; doesn't close
+    void finish() throws IOException;
+}
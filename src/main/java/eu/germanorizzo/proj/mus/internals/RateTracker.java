@@ -0,0 +1,63 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * The short-term rate of a counter (i.e. the bytes that the onAdvancement callbacks sum up),
+ * as an exponentially weighted moving average with time constant TAU: it follows the
+ * changes of speed in a few seconds, whatever the sampling. The counter is sampled when the
+ * rate is read, at most every MIN_INTERVAL, so nothing is added to the hot path.
+ */
+class RateTracker {
+    private static final double TAU = TimeUnit.SECONDS.toNanos(5);
+    private static final long MIN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final LongSupplier counter;
+    private long lastValue, lastTime;
+    private double rate = -1;
+
+    RateTracker(LongSupplier counter) {
+        this.counter = counter;
+    }
+
+    synchronized void start() {
+        lastTime = System.nanoTime();
+        lastValue = counter.getAsLong();
+        rate = -1;
+    }
+
+    /**
+     * Per second; -1 until there's a first sample.
+     */
+    synchronized double getRate() {
+        if (lastTime == 0)
+            return -1;
+        long now = System.nanoTime();
+        long elapsed = now - lastTime;
+        if (elapsed >= MIN_INTERVAL) {
+            long value = counter.getAsLong();
+            double current = (value - lastValue) * 1e9 / elapsed;
+            rate = rate < 0 ? current : rate + (1 - Math.exp(-elapsed / TAU)) * (current - rate);
+            lastValue = value;
+            lastTime = now;
+        }
+        return rate;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import eu.germanorizzo.proj.mus.Mus;
+import eu.germanorizzo.proj.mus.digest.DigesterOutputStream;
+import eu.germanorizzo.proj.mus.utils.MiscUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * The text (.mu5) format:
+ * # disclaimer line
+ * # Format: &lt;format&gt;  (only from format 3)
+ * Checksum&lt;TAB&gt;Size&lt;TAB&gt;File path
+ * Mus file checksum&lt;TAB&gt;Fixed string ("This file")
+ * <p>
+ * Entries are streamed through the digest: memory use doesn't depend on their number.
+ */
+class TextManifestWriter implements ManifestWriter {
+    private static final int BUFFER_SIZE = 65536;
+
+    private final BufferedOutputStream bos;
+    private final DigesterOutputStream dos;
+    private final Writer w;
+
+    TextManifestWriter(OutputStream os, int format) throws IOException {
+        bos = new BufferedOutputStream(os, BUFFER_SIZE);
+        dos = new DigesterOutputStream(bos, Mus.ALGO_BY_FORMAT[format].newDigester());
+        w = new BufferedWriter(new OutputStreamWriter(dos, MiscUtils.UTF8), BUFFER_SIZE);
+        w.write(String.format(FileList.FIRST_LINE, Mus.HEADER_STRING));
+        w.write(MiscUtils.CRLF);
+        if (format >= FileList.FIRST_FORMAT_WITH_HEADER) {
+            w.write(FileList.FORMAT_LINE_PREFIX);
+            w.write(Integer.toString(format));
+            w.write(MiscUtils.CRLF);
+        }
+    }
+
+    public void add(String path, byte[] checksum, String error, long size) throws IOException {
+        w.write(checksum != null ? MiscUtils.bytes2armored(checksum) : String.valueOf(error));
+        w.write(MiscUtils.TAB);
+        w.write(Long.toString(size));
+        w.write(MiscUtils.TAB);
+        w.write(path);
+        w.write(MiscUtils.CRLF);
+    }
+
+    public void finish() throws IOException {
+        w.flush();
+        // the last line is out of the digest
+        bos.write(MiscUtils.bytes2armored(dos.digest()).getBytes(MiscUtils.UTF8));
+        bos.write(FileList.LAST_LINE_SUFFIX.getBytes(MiscUtils.UTF8));
+        bos.flush();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The files under a set of paths, found in a single pass that lists the directories in
+ * parallel, along with the checksum files among them. The results are in a deterministic
+ * order: the paths as given, each directory in the order of the names of its entries.
+ * Symbolic links are not followed.
+ */
+public class TreeScan {
+    // Listing directories is mostly waiting, especially on network storage
+    private static final ForkJoinPool POOL =
+            new ForkJoinPool(Math.max(8, 2 * Runtime.getRuntime().availableProcessors()));
+
+    // The given paths that are directories
+    public final List<Path> roots = new ArrayList<>();
+    // Absolute paths
+    public final List<String> checksumFiles = new ArrayList<>();
+    // Empty if not collected
+    final List<Found> files = new ArrayList<>();
+    // The first error, if any; the results are partial
+    IOException error;
+
+    private final boolean collectFiles;
+    private final FileConsumer onFile;
+
+    private TreeScan(boolean collectFiles, FileConsumer onFile) {
+        this.collectFiles = collectFiles;
+        this.onFile = onFile;
+    }
+
+    public static TreeScan scan(String... files) {
+        return scan(true, null, files);
+    }
+
+    /* onFile, if given, is called from more threads at once, as the files are found; if
+     * it throws, the scan stops. */
+    static TreeScan scan(boolean collectFiles, FileConsumer onFile, String... files) {
+        TreeScan ret = new TreeScan(collectFiles, onFile);
+        List<Object> items = new ArrayList<>();
+        for (String fileName : files) {
+            Path f = Paths.get(fileName).toAbsolutePath();
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(f, BasicFileAttributes.class);
+                if (attrs.isDirectory()) {
+                    ret.roots.add(f);
+                    items.add(POOL.submit(ret.new DirTask(f)));
+                } else
+                    items.add(ret.found(f, attrs));
+            } catch (IOException e) {
+                // still reported, if it's a checksum file, so that the error is clearer
+                items.add(new Found(f, null));
+                ret.fail(e);
+            }
+        }
+        for (Object item : items)
+            try {
+                ret.collect(item);
+            } catch (UncheckedIOException e) {
+                ret.fail(e.getCause());
+            }
+        return ret;
+    }
+
+    private synchronized void fail(IOException e) {
+        if (error == null)
+            error = e;
+    }
+
+    private Found found(Path file, BasicFileAttributes attrs) {
+        Found ret = new Found(file, attrs);
+        if (onFile != null)
+            try {
+                onFile.accept(ret);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        return ret;
+    }
+
+    // Flattens the results, in order
+    private void collect(Object item) {
+        if (item instanceof Found) {
+            Found f = (Found) item;
+            if (collectFiles)
+                files.add(f);
+            if (Walker.isChecksumFile(f.path))
+                checksumFiles.add(f.path.toString());
+        } else
+            for (Object child : ((DirTask) item).join())
+                collect(child);
+    }
+
+    static class Found {
+        final Path path;
+        // null if they can't be read
+        final BasicFileAttributes attrs;
+
+        Found(Path path, BasicFileAttributes attrs) {
+            this.path = path;
+            this.attrs = attrs;
+        }
+    }
+
+    /**
+     * The inode of a file, from the attributes already read; on Unix, their fileKey() is
+     * "(dev=...,ino=...)". 0 if not known.
+     */
+    static long inode(BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        if (key == null)
+            return 0;
+        String s = key.toString();
+        int from = s.indexOf("ino=");
+        if (from < 0)
+            return 0;
+        from += 4;
+        int to = from;
+        while (to < s.length() && Character.isDigit(s.charAt(to)))
+            to++;
+        try {
+            return Long.parseLong(s.substring(from, to));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    interface FileConsumer {
+        void accept(Found file) throws IOException;
+    }
+
+    // Lists a directory, forking its subdirectories; returns Founds and DirTasks, in order
+    @SuppressWarnings("serial")
+    private class DirTask extends RecursiveTask<List<Object>> {
+        private final Path dir;
+
+        DirTask(Path dir) {
+            this.dir = dir;
+        }
+
+        protected List<Object> compute() {
+            List<Path> children = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path child : ds)
+                    children.add(child);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            children.sort(Comparator.comparing((p) -> p.getFileName().toString()));
+
+            List<Object> ret = new ArrayList<>(children.size());
+            for (Path child : children)
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(child,
+                            BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isDirectory()) {
+                        DirTask sub = new DirTask(child);
+                        sub.fork();
+                        ret.add(sub);
+                    } else
+                        ret.add(found(child, attrs));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            return ret;
+        }
+    }
+}
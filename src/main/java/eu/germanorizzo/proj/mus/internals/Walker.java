@@ -18,28 +18,53 @@ package eu.germanorizzo.proj.mus.internals;
 
 import eu.germanorizzo.proj.mus.Mus;
 import eu.germanorizzo.proj.mus.internals.FileList.Info;
+import eu.germanorizzo.proj.mus.utils.HashContext;
 import eu.germanorizzo.proj.mus.utils.MiscUtils;
+import eu.germanorizzo.proj.mus.utils.Throttle;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 public class Walker {
+    /**
+     * For work(): the number of threads of each non-rotational device is tuned while
+     * working, by the observed throughput (see ConcurrencyTuner).
+     */
+    public static final int AUTO_THREADS = 0;
+    private static final String UNKNOWN_DEVICE = "?";
+    // Upper bounds of the tuning
+    private static final int AUTO_MAX_THREADS =
+            Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+    private static final int AUTO_MAX_VIRTUAL_THREADS = 512;
+    private static final int TUNING_PERIOD = 1000;
+
     private final String[] files;
     private final String[] checksums;
-    private int format;
-    private final Semaphore semaphore = new Semaphore(0);
+    // The checksum file to update, in update mode
+    private File updating;
+    // The files, when they're already found
+    private TreeScan scanned;
+    private final List<String> filesAdded = new ArrayList<>();
+    private final List<String> filesChanged = new ArrayList<>();
+    private final List<String> filesRemoved = new ArrayList<>();
+    private volatile int format;
+    private final Map<Object, DeviceQueue> devices = new LinkedHashMap<>();
+    private final Map<Path, DeviceQueue> devicesByDirectory = new HashMap<>();
+    private final Map<String, Integer> deviceConcurrency = new HashMap<>();
+    private int threads;
     private final AtomicLong totalSize = new AtomicLong();
-    private final AtomicLong sizeProcessed = new AtomicLong();
-    private final AtomicInteger filesOk = new AtomicInteger();
+    // Updated by all the workers, at each read or file: striped
+    private final LongAdder sizeProcessed = new LongAdder();
+    private final LongAdder filesOk = new LongAdder();
     private final ConcurrentMap<String, String> filesKo = new ConcurrentHashMap<>();
     private final ConcurrentMap<String, String> filesMissing = new ConcurrentHashMap<>();
     private final FileList fileList = new FileList();
@@ -48,12 +73,31 @@ public class Walker {
     private Consumer<Exception> onError;
     private long startOfComputation, endOfComputation;
     private volatile State state;
+    private boolean streaming;
+    private boolean trustCache, forceFullRead = true;
+    private boolean virtualThreads;
+    private boolean physicalOrder = true;
+    private final Throttle throttle = new Throttle();
+    private boolean directIO;
+    private final AtomicInteger filesDirect = new AtomicInteger();
+    // With directIO, the files that couldn't be read so
+    private final Set<String> filesNotDirect = ConcurrentHashMap.newKeySet();
+    private final WalkerMetrics metrics = new WalkerMetrics(this);
+    private final RateTracker bytesRate = new RateTracker(sizeProcessed::sum);
+    private final RateTracker filesRate = new RateTracker(() -> getFilesOk() + getFilesKo()
+            + getFilesMissing());
+    // The sorted lists of files, made once when finished
+    private volatile Report report;
+    // The file that was completed last, to follow the progress
+    private volatile Info lastDone;
 
     private Walker(String[] files, String[] checksums, int format) {
         this.checksums = checksums;
         this.files = files;
         this.format = format;
         this.state = State.NEW;
+        if (format > 0)
+            fileList.setFormat(format);
     }
 
     public static Walker forFiles(int format, String... files) {
@@ -68,27 +112,40 @@ public class Walker {
         return new Walker(null, checksums.toArray(new String[checksums.size()]), -1);
     }
 
+    /**
+     * Updates an existing checksum file: only the new files, and the ones whose size
+     * changed or that were modified after the checksum file, are hashed; the entries of
+     * deleted files are dropped. The format is the one of the checksum file. If no files
+     * are given, the roots are the top level entries of the checksum file; the entries
+     * outside of the given roots are kept, without checking them. The result is
+     * written with getFileList().writeToFile(), as usual.
+     * Note that the modification times are compared with the one of the checksum file: a
+     * file modified before it was last written, copied or touched (i.e. while it was being
+     * created, or restoring it from a backup) looks unchanged, if its size is the same.
+     */
+    public static Walker forUpdate(String checksum, String... files) {
+        Walker ret = new Walker(files, null, -1);
+        ret.updating = new File(checksum).getAbsoluteFile();
+        return ret;
+    }
+
+    /**
+     * Creates checksums for files already found by a TreeScan, without walking them again.
+     */
+    public static Walker forScan(int format, TreeScan scan) {
+        Walker ret = new Walker(null, null, format);
+        ret.scanned = scan;
+        return ret;
+    }
+
     public static List<String> areThereChecksumFiles(String[] files) {
-        List<String> checksums = new ArrayList<>();
-        for (String fileName : files) {
-            Path f = Paths.get(fileName).toAbsolutePath();
-            if (Files.isDirectory(f)) {
-                try {
-                    Files.walkFileTree(f, new SimpleFileVisitor<>() {
-                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
-                            if (file.toString().endsWith("." + FileList.EXTENSION))
-                                checksums.add(file.toString());
-                            return FileVisitResult.CONTINUE;
-                        }
-                    });
-                } catch (IOException ignored) {
-                }
-            } else {
-                if (f.toString().endsWith("." + FileList.EXTENSION))
-                    checksums.add(f.toString());
-            }
-        }
-        return checksums;
+        return TreeScan.scan(false, null, files).checksumFiles;
+    }
+
+    static boolean isChecksumFile(Path file) {
+        String name = file.toString();
+        return name.endsWith("." + FileList.EXTENSION)
+                || name.endsWith("." + FileList.BINARY_EXTENSION);
     }
 
     public void setOnBuilding(Runnable onBuilding) {
@@ -107,16 +164,109 @@ public class Walker {
         this.onError = onError;
     }
 
+    /**
+     * In streaming mode the files are checksummed while the tree is still being built; the
+     * hashing workers drain a bounded queue that is fed by the directory walk.
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Enables the hash cache (see HashCache): the checksums are stored along with the files,
+     * and when creating a checksum file the unchanged files are not read again.
+     */
+    public void setTrustCache(boolean trustCache) {
+        this.trustCache = trustCache;
+    }
+
+    /**
+     * When verifying, the files are read in full even with a trusted cache (default: true).
+     * If false, an unchanged file is checked against its cached checksum: this is quicker,
+     * but doesn't detect bit rot.
+     */
+    public void setForceFullRead(boolean forceFullRead) {
+        this.forceFullRead = forceFullRead;
+    }
+
+    /**
+     * Runs the workers on virtual threads, if the JVM supports them (Java 21+; otherwise it
+     * has no effect). As they're cheap, the number of threads can then be in the hundreds,
+     * to keep many reads in flight and hide the latency of network filesystems.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * On rotational devices, reads the files in the order of their inodes, that roughly
+     * follows their placement on the disk, a directory at a time; this reduces seeking
+     * (default: true). Doesn't apply in streaming mode. The order of the checksum file
+     * doesn't change.
+     */
+    public void setPhysicalOrder(boolean physicalOrder) {
+        this.physicalOrder = physicalOrder;
+    }
+
+    /**
+     * Limits the reads of all the workers together to a number of bytes and of read
+     * operations per second (0: no limit, the default), i.e. to check a big collection in the
+     * background without starving the other users of the disks. Can be called at any time,
+     * also while working.
+     */
+    public void setThrottle(long bytesPerSecond, int readsPerSecond) {
+        throttle.setLimits(bytesPerSecond, readsPerSecond);
+    }
+
+    /**
+     * Reads the files bypassing the page cache (O_DIRECT), where the filesystem allows it:
+     * verifying a big collection then doesn't evict the data that the other programs are
+     * using. The Status tells which files were read so.
+     */
+    public void setDirectIO(boolean directIO) {
+        this.directIO = directIO;
+    }
+
+    public static boolean isVirtualThreadsSupported() {
+        return DeviceQueue.isVirtualSupported();
+    }
+
+    /**
+     * Overrides the number of concurrent workers for a device, by the FileStore name (i.e.
+     * "/dev/sda1" on Linux). By default it's 1 for rotational media, and the number of threads
+     * passed to work() for the others (tuned, with AUTO_THREADS).
+     */
+    public void setDeviceConcurrency(String device, int concurrency) {
+        deviceConcurrency.put(device, concurrency);
+    }
+
     public void work(int threads) {
+        this.threads = threads;
+        Thread tuning = null;
         try {
             if (state != State.NEW)
                 throw new IllegalStateException("This Walker is already used");
 
+            metrics.register();
+            if (threads == AUTO_THREADS) {
+                tuning = new Thread(this::tune, "Mus concurrency tuner");
+                tuning.setDaemon(true);
+                tuning.start();
+            }
+
+            if (trustCache)
+                fileList.setCache(new HashCache(checksums == null || !forceFullRead));
+
             state = State.BUILDING;
             if (onBuilding != null)
                 onBuilding.run();
 
-            if (checksums == null)
+            if (streaming)
+                startComputation();
+
+            if (updating != null)
+                buildUpdate();
+            else if (checksums == null)
                 buildTree();
             else
                 try {
@@ -126,80 +276,351 @@ public class Walker {
                             + MiscUtils.CRLF + MiscUtils.CRLF + cke.getMessage();
                     if (onError != null)
                         onError.accept(new Exception(error));
+                    fileList.seal();
                     if (fileList.size() == 0) {
-                        state = State.FINISHED;
+                        stopDevices();
+                        finish();
                         return;
                     }
                 }
 
+            fileList.seal();
+
             if (fileList.isEmpty())
                 throw new IllegalArgumentException("No files to process!");
 
+            DeviceQueue[] assignment = null;
+            if (!streaming) {
+                assignment = new DeviceQueue[fileList.size()];
+                for (int i = 0; i < fileList.size(); i++) {
+                    Info info = fileList.getFileInfo(i);
+                    if (info.getState() == FileList.State.OK
+                            || updating != null && info.getState() == FileList.State.ERR)
+                        continue; // unchanged or kept, in update mode
+                    assignment[i] = deviceFor(info.getPath());
+                    assignment[i].account(info);
+                }
+            }
+
             state = State.CALCULATING;
             if (onCalculating != null)
                 onCalculating.accept(getStatus());
-            startOfComputation = System.currentTimeMillis();
-
-            ExecutorService threadPool = Executors.newFixedThreadPool(threads);
-
-            for (int i = 0; i < fileList.size(); i++) {
-                final int idx = i;
-                threadPool.execute(() -> {
-                    FileList.CheckStatus ok = fileList.calcChecksum(format, idx, sizeProcessed::addAndGet);
-                    semaphore.release();
-                    switch (ok) {
-                        case OK:
-                            filesOk.incrementAndGet();
-                            break;
-                        case KO:
-                            filesKo.put(fileList.getFileInfo(idx).path.toString(), "");
-                            break;
-                        case MISSING:
-                            filesMissing.put(fileList.getFileInfo(idx).path.toString(), "");
-                            break;
-                    }
-                });
-            }
 
-            try {
-                semaphore.acquire(fileList.size());
-            } catch (InterruptedException ignored) {
+            if (!streaming) {
+                startComputation();
+                dispatch(assignment);
             }
 
-            threadPool.shutdown();
+            stopDevices();
 
-            endOfComputation = System.currentTimeMillis();
-            state = State.FINISHED;
+            finish();
             if (onFinished != null)
                 onFinished.accept(getStatus());
         } catch (Exception e) {
+            abortDevices();
             if (onError != null)
                 onError.accept(e);
+        } finally {
+            if (tuning != null)
+                tuning.interrupt();
+            metrics.unregister();
+        }
+    }
+
+    private void startComputation() {
+        startOfComputation = System.currentTimeMillis();
+        bytesRate.start();
+        filesRate.start();
+    }
+
+    private void finish() {
+        endOfComputation = System.currentTimeMillis();
+        report = new Report();
+        state = State.FINISHED;
+    }
+
+    /* Feeds each device on its own thread, so that a full queue doesn't hold the others;
+     * the files go in the order of largestFirst(), or physicalOrder() for rotational media. */
+    private void dispatch(DeviceQueue[] assignment) throws InterruptedException {
+        Map<DeviceQueue, List<Integer>> byDevice = new LinkedHashMap<>();
+        for (int i : largestFirst(assignment))
+            byDevice.computeIfAbsent(assignment[i], (d) -> new ArrayList<>()).add(i);
+
+        List<Thread> feeders = new ArrayList<>();
+        for (Map.Entry<DeviceQueue, List<Integer>> e : byDevice.entrySet()) {
+            DeviceQueue device = e.getKey();
+            List<Integer> files = e.getValue();
+            Thread feeder = new Thread(() -> {
+                try {
+                    if (device.rotational && physicalOrder)
+                        physicalOrder(files);
+                    for (int i : files)
+                        device.put(fileList.getFileInfo(i));
+                } catch (InterruptedException ignored) {
+                }
+            }, "Mus feeder (" + device.name + ")");
+            feeder.setDaemon(true);
+            feeder.start();
+            feeders.add(feeder);
+        }
+        try {
+            for (Thread feeder : feeders)
+                feeder.join();
+        } finally {
+            for (Thread feeder : feeders)
+                feeder.interrupt();
+        }
+    }
+
+    /* Sorts the files by inode, grouped by directory (the directories in the order of their
+     * first inode). Inodes are allocated close to their data by most Unix filesystems, and
+     * tend to grow with the files' creation; elsewhere, the order doesn't change. The inodes
+     * are the ones found by the walk; only the files loaded from a checksum file are stat'ed
+     * here. */
+    private void physicalOrder(List<Integer> files) {
+        List<Placement> placements = new ArrayList<>(files.size());
+        Map<Path, Long> firstInodes = new HashMap<>();
+        for (int i : files) {
+            Info info = fileList.getFileInfo(i);
+            Path p = info.getPath();
+            Placement pl = new Placement(i, p.getParent());
+            pl.inode = info.getInode();
+            if (pl.inode == 0)
+                try {
+                    pl.inode = ((Number) Files.getAttribute(p, "unix:ino")).longValue();
+                } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                    return; // not Unix
+                } catch (IOException e) {
+                    pl.inode = Long.MAX_VALUE; // i.e. missing: at the end
+                }
+            firstInodes.merge(pl.dir, pl.inode, Math::min);
+            placements.add(pl);
+        }
+        for (Placement pl : placements)
+            pl.firstInode = firstInodes.get(pl.dir);
+        placements.sort(Comparator.<Placement>comparingLong((pl) -> pl.firstInode)
+                .thenComparing((pl) -> pl.dir).thenComparingLong((pl) -> pl.inode));
+        for (int i = 0; i < files.size(); i++)
+            files.set(i, placements.get(i).idx);
+    }
+
+    private static class Placement {
+        final int idx;
+        final Path dir;
+        long inode, firstInode;
+
+        Placement(int idx, Path dir) {
+            this.idx = idx;
+            this.dir = dir;
+        }
+    }
+
+    /* The files to hash, the largest first, so that a big file isn't left to a single worker
+     * at the end while the others are idle; the small ones then fill the gaps. They're sorted
+     * by power of two of their size only, keeping the path order (and its locality) among the
+     * files of similar size. */
+    private int[] largestFirst(DeviceQueue[] assignment) {
+        int[] starts = new int[Long.SIZE + 1];
+        int count = 0;
+        for (int i = 0; i < assignment.length; i++)
+            if (assignment[i] != null) {
+                starts[sizeClass(i)]++;
+                count++;
+            }
+        for (int c = Long.SIZE, pos = 0; c >= 0; c--) {
+            int n = starts[c];
+            starts[c] = pos;
+            pos += n;
+        }
+        int[] ret = new int[count];
+        for (int i = 0; i < assignment.length; i++)
+            if (assignment[i] != null)
+                ret[starts[sizeClass(i)]++] = i;
+        return ret;
+    }
+
+    private int sizeClass(int idx) {
+        return Long.SIZE - Long.numberOfLeadingZeros(fileList.getFileInfo(idx).getSize());
+    }
+
+    private void tune() {
+        try {
+            while (true) {
+                Thread.sleep(TUNING_PERIOD);
+                for (DeviceQueue device : getDevices())
+                    if (device.tuner != null)
+                        device.tuner.tick();
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    // The device of a file is looked up once per directory
+    private synchronized DeviceQueue deviceFor(Path file) {
+        Path dir = file.getParent();
+        DeviceQueue ret = devicesByDirectory.get(dir);
+        if (ret != null)
+            return ret;
+
+        FileStore store = null;
+        for (Path p = dir; store == null && p != null; p = p.getParent())
+            try {
+                store = Files.getFileStore(p);
+            } catch (IOException ignored) {
+                // i.e. a missing file: tries with the parent
+            }
+
+        Object key = store == null ? UNKNOWN_DEVICE : store;
+        ret = devices.get(key);
+        if (ret == null) {
+            String name = store == null ? UNKNOWN_DEVICE : store.name();
+            boolean rotational = store != null && DeviceQueue.isRotational(store);
+            boolean adaptive = threads == AUTO_THREADS && !rotational
+                    && !deviceConcurrency.containsKey(name);
+            int max = virtualThreads && DeviceQueue.isVirtualSupported() ? AUTO_MAX_VIRTUAL_THREADS
+                    : AUTO_MAX_THREADS;
+            int concurrency = deviceConcurrency.getOrDefault(name, rotational ? 1
+                    : adaptive ? max : threads);
+            // unknown: looked up for each file
+            int alignment = directIO && store != null ? HashContext.alignmentOf(store) : 0;
+            ret = new DeviceQueue(name, rotational, concurrency, virtualThreads, adaptive,
+                    throttle, directIO, alignment, sizeProcessed::add, this::hash);
+            ret.start();
+            devices.put(key, ret);
+        }
+        devicesByDirectory.put(dir, ret);
+        return ret;
+    }
+
+    synchronized List<DeviceQueue> getDevices() {
+        return new ArrayList<>(devices.values());
+    }
+
+    private void stopDevices() throws InterruptedException {
+        for (DeviceQueue device : getDevices())
+            device.stop();
+    }
+
+    private void abortDevices() {
+        try {
+            for (DeviceQueue device : getDevices())
+                device.abort();
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private void hash(DeviceQueue device, HashContext ctx, Info info,
+                      IntConsumer onAdvancement) {
+        long start = System.nanoTime();
+        long chunkSize = Mus.CHUNK_SIZE_BY_FORMAT[format];
+        if (chunkSize < 0 || info.getSize() <= chunkSize || device.getLimit() < 2) {
+            account(device, info, fileList.calcChecksum(format, info, ctx, onAdvancement), start);
+            return;
+        }
+
+        // a big file of a tree format: its chunks are hashed by all the workers of the device
+        FileList.CheckStatus ret = fileList.startChecksum(format, info, onAdvancement);
+        if (ret != null) {
+            account(device, info, ret, start);
+            return;
+        }
+        FileChannel ch = null;
+        try {
+            ch = ctx.open(info.getPath());
+            fileList.setReadPath(info, ctx.isOpenedDirect());
+            ret = fileList.opened(info, ch.size());
+            if (ret != null) {
+                ch.close();
+                account(device, info, ret, start);
+                return;
+            }
+            device.share(new ChunkedFile(format, info, ch, (file, c, error) ->
+                    account(device, file.info, error == null ? fileList.endChecksum(format, file.info, c)
+                            : fileList.failChecksum(file.info, error), start)));
+        } catch (IOException e) {
+            if (ch != null)
+                try {
+                    ch.close();
+                } catch (IOException ignored) {
+                }
+            account(device, info, fileList.failChecksum(info, e), start);
+        }
+    }
+
+    // start: when the worker took the file, for the metrics
+    private void account(DeviceQueue device, Info info, FileList.CheckStatus ok, long start) {
+        metrics.hashed(System.nanoTime() - start);
+        device.doneFiles.increment();
+        lastDone = info;
+        switch (info.getReadPath()) {
+            case DIRECT:
+                filesDirect.incrementAndGet();
+                break;
+            case PAGE_CACHE:
+                if (directIO)
+                    filesNotDirect.add(info.getPath().toString());
+                break;
+        }
+        switch (ok) {
+            case OK:
+                filesOk.increment();
+                break;
+            case KO:
+                filesKo.put(info.getPath().toString(), "");
+                break;
+            case MISSING:
+                filesMissing.put(info.getPath().toString(), "");
+                break;
         }
     }
 
     private void buildTree() throws IOException {
-        for (String fileName : files) {
-            Path f = Paths.get(fileName).toAbsolutePath();
-            if (Files.isDirectory(f)) {
-                fileList.addPath(f);
-                Files.walkFileTree(f, new SimpleFileVisitor<>() {
-                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-                            throws IOException {
-                        addFile(file);
-                        return FileVisitResult.CONTINUE;
-                    }
-                });
-            } else
+        Events.Walk event = new Events.Walk();
+        event.begin();
+        // in streaming mode the files are added as they're found, else in the scan's order
+        TreeScan scan = scanned != null ? scanned
+                : TreeScan.scan(!streaming, streaming ? this::addFile : null, files);
+        if (scan.error != null)
+            throw scan.error;
+        for (Path root : scan.roots)
+            fileList.addPath(root);
+        if (scanned != null || !streaming)
+            for (TreeScan.Found f : scan.files)
                 addFile(f);
+        if (event.shouldCommit()) {
+            StringJoiner roots = new StringJoiner(File.pathSeparator);
+            for (Path root : scan.roots)
+                roots.add(root.toString());
+            event.roots = roots.toString();
+            event.files = fileList.size();
+            event.bytes = totalSize.get();
+            event.commit();
         }
     }
 
-    private void addFile(Path file) throws IOException {
-        Info info = fileList.addPath(file);
-        long size = Files.size(file);
-        totalSize.addAndGet(size);
-        info.size = size;
+    // With the attributes from the walk, so that it's not stat'ed again
+    private void addFile(TreeScan.Found file) throws IOException {
+        Info info = fileList.addFile(file.path);
+        // a link is checksummed as its target
+        BasicFileAttributes attrs = file.attrs.isSymbolicLink()
+                ? Files.readAttributes(file.path, BasicFileAttributes.class) : file.attrs;
+        totalSize.addAndGet(attrs.size());
+        info.setSize(attrs.size());
+        if (physicalOrder)
+            fileList.setInode(info, TreeScan.inode(attrs));
+        enqueueIfStreaming(info);
+    }
+
+    private void enqueueIfStreaming(Info info) throws IOException {
+        if (!streaming)
+            return;
+        try {
+            DeviceQueue device = deviceFor(info.getPath());
+            device.account(info);
+            device.put(info);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while building the file tree");
+        }
     }
 
     private int loadChecksumTree() throws IOException, ChecksumVerificationFailedException {
@@ -225,68 +646,169 @@ public class Walker {
         return format;
     }
 
-    /* returns the format */
-    private int loadChecksumTree(File checksum)
+    /* returns the format; package-private for the benchmarks */
+    int loadChecksumTree(File checksum)
             throws IOException, ChecksumVerificationFailedException {
-        int lastLineLen = MiscUtils.getLastLineOfFile(checksum).length();
-        int format = Arrays.binarySearch(Mus.ALGO_LEN_BY_FORMAT, lastLineLen - FileList.LAST_LINE_SUFFIX.length());
-        //try to load checksum part (if it's there)
-        byte[] contents;
-        try (InputStream is = new FileInputStream(checksum)) {
-            contents = new byte[(int) (checksum.length() - lastLineLen)];
-            //noinspection ResultOfMethodCallIgnored
-            is.read(contents);
-            byte[] candidate = new byte[lastLineLen];
-            //noinspection ResultOfMethodCallIgnored
-            is.read(candidate);
-            String scandidate = new String(candidate);
-            if (!scandidate.endsWith(FileList.LAST_LINE_SUFFIX)) {
-                // general file checksum line may not be present. In this
-                // case the file contents are recomposed, and checksum of the
-                // Mus file is ignored
-                try (ByteArrayOutputStream baos = new ByteArrayOutputStream(
-                        (int) checksum.length())) {
-                    baos.write(contents);
-                    baos.write(candidate);
-                    contents = baos.toByteArray();
-                }
-            } else {
-                String calc;
-                try (InputStream cis = new ByteArrayInputStream(contents)) {
-                    calc = MiscUtils.computeChecksum(format, cis, null);
-                }
-                if (!scandidate.startsWith(calc))
-                    throw new ChecksumVerificationFailedException(checksum.getAbsolutePath());
+        int entriesBefore = fileList.size();
+        long sizeBefore = totalSize.get();
+        Events.ChecksumLoad event = new Events.ChecksumLoad();
+        event.begin();
+        try {
+            int ret = readEntries(checksum);
+            setFormat(ret);
+            // in streaming mode too, only the entries of a checksum file that passed the
+            // integrity check are verified
+            for (int i = entriesBefore; i < fileList.size(); i++)
+                enqueueIfStreaming(fileList.getEntry(i));
+            if (event.shouldCommit()) {
+                event.file = checksum.getPath();
+                event.entries = fileList.size() - entriesBefore;
+                event.format = ret;
+                event.commit();
             }
+            return ret;
+        } catch (ChecksumVerificationFailedException e) {
+            // its entries are dropped
+            fileList.truncate(entriesBefore);
+            totalSize.set(sizeBefore);
+            throw e;
         }
+    }
 
-        try (Reader r = new StringReader(new String(contents, MiscUtils.UTF8));
-             BufferedReader br = new BufferedReader(r)) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                // non-checksum lines are ignored
-                if (MiscUtils.countChars(line, MiscUtils.TAB) != 2)
-                    continue;
-                int pos = line.indexOf(MiscUtils.TAB);
-                String cksum = line.substring(0, pos);
-                int pos2 = line.indexOf(MiscUtils.TAB, pos + 1);
-                long size = Long.parseLong(line.substring(pos + 1, pos2));
-                String file = line.substring(pos2 + 1);
-                Path p = Paths.get(checksum.getParent(), file);
-                Info i = fileList.addPath(p);
-                i.size = size;
-                totalSize.addAndGet(size);
-                if (cksum.length() == Mus.ALGO_LEN_BY_FORMAT[format]) {
-                    i.state = FileList.State.NULL;
-                    i.checksum = cksum;
-                } else {
-                    i.state = FileList.State.ERR;
-                    i.error = cksum;
-                }
-            }
+    private int readEntries(File checksum)
+            throws IOException, ChecksumVerificationFailedException {
+        // The checksums are stored raw, so their length must be known before the first one
+        int format = FileList.isBinary(checksum) ? new BinaryManifestReader(checksum).getFormat()
+                : new ManifestReader(checksum).readFormat();
+        if (fileList.size() > 0 && format != this.format)
+            throw new IOException("Checksum files of different formats can't be verified together");
+        setFormat(format);
+        return read(checksum, (f, p, cksum, error, size) -> {
+            Info i = fileList.addFile(p);
+            i.setSize(size);
+            totalSize.addAndGet(size);
+            if (cksum != null)
+                i.setChecksum(cksum);
+            else
+                i.setError(error);
+        });
+    }
+
+    private static int read(File checksum, ManifestReader.EntryConsumer consumer)
+            throws IOException, ChecksumVerificationFailedException {
+        if (FileList.isBinary(checksum))
+            return new BinaryManifestReader(checksum).read(consumer);
+        return new ManifestReader(checksum).read(consumer);
+    }
+
+    // The format must be known before the first file is hashed (i.e. in streaming mode)
+    private void setFormat(int format) {
+        if (this.format != format) {
+            this.format = format;
+            fileList.setFormat(format);
+        }
+    }
+
+    private void buildUpdate() throws IOException {
+        Path manifest = updating.toPath().normalize();
+        Path base = manifest.getParent();
+        long manifestTime = Files.getLastModifiedTime(manifest).toMillis();
+        Map<Path, Entry> previous = new HashMap<>();
+        try {
+            setFormat(read(updating, (format, p, cksum, error, size) ->
+                    previous.put(p.normalize(), new Entry(cksum, error, size))));
+        } catch (ChecksumVerificationFailedException e) {
+            throw new IOException("The Mus file didn't pass integrity check: " + e.getMessage());
         }
 
-        return format;
+        // The relative paths must stay the same, even if the roots are now different
+        fileList.setBase(base);
+        Set<Path> roots = new TreeSet<>();
+        for (String fileName : files)
+            roots.add(Paths.get(fileName).toAbsolutePath().normalize());
+        if (roots.isEmpty())
+            for (Path p : previous.keySet())
+                roots.add(base.resolve(base.relativize(p).getName(0)));
+
+        List<String> existing = new ArrayList<>();
+        for (Path root : roots) {
+            if (!root.startsWith(base))
+                throw new IllegalArgumentException(root + " is not under " + base);
+            if (Files.exists(root))
+                existing.add(root.toString());
+        }
+        TreeScan scan = TreeScan.scan(true, null, existing.toArray(new String[0]));
+        if (scan.error != null)
+            throw scan.error;
+        for (TreeScan.Found f : scan.files)
+            updateFile(f, manifest, manifestTime, previous);
+
+        // What's left was not found: removed if under the roots, else kept as it was
+        for (Map.Entry<Path, Entry> e : previous.entrySet()) {
+            if (isUnder(e.getKey(), roots))
+                filesRemoved.add(e.getKey().toString());
+            else
+                keepEntry(e.getKey(), e.getValue());
+        }
+    }
+
+    private static boolean isUnder(Path file, Set<Path> roots) {
+        for (Path root : roots)
+            if (file.startsWith(root))
+                return true;
+        return false;
+    }
+
+    // Outside of the roots: copied unchanged, and not checked
+    private void keepEntry(Path file, Entry prev) {
+        Info info = fileList.addFile(file);
+        info.setSize(prev.size);
+        if (prev.checksum == null) {
+            info.setError(prev.error);
+            return;
+        }
+        info.setChecksum(prev.checksum);
+        info.setOk();
+        filesOk.increment();
+    }
+
+    private void updateFile(TreeScan.Found found, Path manifest, long manifestTime,
+                            Map<Path, Entry> previous) throws IOException {
+        Path file = found.path;
+        if (file.equals(manifest))
+            return;
+        // a link is checksummed as its target
+        BasicFileAttributes attrs = found.attrs.isSymbolicLink()
+                ? Files.readAttributes(file, BasicFileAttributes.class) : found.attrs;
+        Entry prev = previous.remove(file);
+        Info info = fileList.addFile(file);
+        info.setSize(attrs.size());
+        if (physicalOrder)
+            fileList.setInode(info, TreeScan.inode(attrs));
+        if (prev != null && prev.checksum != null && prev.size == attrs.size()
+                && attrs.lastModifiedTime().toMillis() <= manifestTime) {
+            info.setChecksum(prev.checksum);
+            info.setOk();
+            filesOk.increment();
+            return;
+        }
+
+        (prev == null ? filesAdded : filesChanged).add(file.toString());
+        totalSize.addAndGet(attrs.size());
+        enqueueIfStreaming(info);
+    }
+
+    // An entry of the checksum file being updated
+    private static class Entry {
+        final byte[] checksum;
+        final String error;
+        final long size;
+
+        Entry(byte[] checksum, String error, long size) {
+            this.checksum = checksum;
+            this.error = error;
+            this.size = size;
+        }
     }
 
     public Status getStatus() {
@@ -297,6 +819,32 @@ public class Walker {
         return fileList;
     }
 
+    // For WalkerMetrics, that reads the counters live
+
+    State getState() {
+        return state;
+    }
+
+    long getTotalSize() {
+        return totalSize.get();
+    }
+
+    long getSizeProcessed() {
+        return sizeProcessed.sum();
+    }
+
+    long getFilesOk() {
+        return filesOk.sum();
+    }
+
+    long getFilesKo() {
+        return filesKo.size();
+    }
+
+    long getFilesMissing() {
+        return filesMissing.size();
+    }
+
     public enum State {
         NEW, BUILDING, CALCULATING, FINISHED
     }
@@ -304,21 +852,50 @@ public class Walker {
     public class Status {
         public final State state;
         public final int totFiles, doneFilesOk, doneFilesKo;
+        public final int discoveredFiles, hashedFiles;
+        public final int cachedFiles;
+        // Files read bypassing the page cache; with direct I/O, when finished, the ones that
+        // were read through it instead (else null)
+        public final int directFiles;
+        public final List<String> filesNotDirect;
         public final int percentageOn10k;
-        public final long totSize, bytesPerSecond;
+        public final long totSize;
+        // While calculating, over the last seconds (-1 until known); when finished, on average
+        public final long bytesPerSecond;
+        public final double filesPerSecond;
+        // While calculating, the ETA: the one of the slowest device (-1 until known); when
+        // finished, the time it took
         public final int secondsRemaining;
+        // When finished: the time that the workers were idle at the end, waiting for the last
+        // files to complete, summed (in ms)
+        public final long tailIdleMillis;
+        // While calculating, the index of the file that was completed last (-1 if none): the
+        // files aren't completed in their order
+        public final int lastDoneFile;
         public final List<String> filesKo, filesMissing;
+        // Update mode only, when finished
+        public final List<String> filesAdded, filesChanged, filesRemoved;
+        public final List<DeviceStatus> devices = new ArrayList<>();
 
         Status() {
             state = Walker.this.state;
+            long tailIdle = 0;
+            for (DeviceQueue device : getDevices()) {
+                DeviceStatus ds = new DeviceStatus(device, state == State.FINISHED);
+                tailIdle += ds.tailIdleMillis;
+                devices.add(ds);
+            }
+            tailIdleMillis = tailIdle;
+            Report report = Walker.this.report;
             switch (state) {
                 case BUILDING:
                     totFiles = Walker.this.fileList.size();
                     totSize = totalSize.get();
-                    doneFilesOk = 0;
-                    doneFilesKo = 0;
+                    doneFilesOk = (int) Walker.this.filesOk.sum();
+                    doneFilesKo = Walker.this.filesKo.size() + Walker.this.filesMissing.size();
                     percentageOn10k = 0;
                     bytesPerSecond = 0;
+                    filesPerSecond = 0;
                     secondsRemaining = 0;
                     filesKo = null;
                     filesMissing = null;
@@ -327,17 +904,18 @@ public class Walker {
                 case CALCULATING:
                     totFiles = Walker.this.fileList.size();
                     totSize = totalSize.get();
-                    doneFilesOk = Walker.this.filesOk.get();
+                    doneFilesOk = (int) Walker.this.filesOk.sum();
                     doneFilesKo = Walker.this.filesKo.size() + Walker.this.filesMissing.size();
                     percentageOn10k = (Walker.this.totalSize.get() == 0) ? 0
-                            : (int) (Walker.this.sizeProcessed.get() * 10000
+                            : (int) (Walker.this.sizeProcessed.sum() * 10000
                             / Walker.this.totalSize.get());
-                    long now = System.currentTimeMillis();
-                    bytesPerSecond = ((now - startOfComputation) / 1000) == 0 ? -1
-                            : Walker.this.sizeProcessed.get() / ((now - startOfComputation) / 1000);
-                    secondsRemaining = (bytesPerSecond == 0) ? -1
-                            : (int) ((Walker.this.totalSize.get() - Walker.this.sizeProcessed.get())
-                            / bytesPerSecond);
+                    bytesPerSecond = (long) bytesRate.getRate();
+                    filesPerSecond = filesRate.getRate();
+                    // the devices work in parallel: the slowest one makes the ETA
+                    int eta = -1;
+                    for (DeviceStatus ds : devices)
+                        eta = Math.max(eta, ds.secondsRemaining);
+                    secondsRemaining = eta;
                     filesKo = null;
                     filesMissing = null;
                     break;
@@ -345,17 +923,18 @@ public class Walker {
                 case FINISHED:
                     totFiles = Walker.this.fileList.size();
                     totSize = totalSize.get();
-                    doneFilesOk = Walker.this.filesOk.get();
+                    doneFilesOk = (int) Walker.this.filesOk.sum();
                     percentageOn10k = 10000;
-                    bytesPerSecond = ((endOfComputation - startOfComputation) / 1000) == 0 ? -1
-                            : Walker.this.sizeProcessed.get()
-                            / ((endOfComputation - startOfComputation) / 1000);
-                    secondsRemaining = (int) ((endOfComputation - startOfComputation) / 1000);
-                    filesKo = new ArrayList<>(Walker.this.filesKo.keySet());
-                    Collections.sort(filesKo);
-                    filesMissing = new ArrayList<>(Walker.this.filesMissing.keySet());
-                    Collections.sort(filesMissing);
+                    filesKo = report.filesKo;
+                    filesMissing = report.filesMissing;
                     doneFilesKo = filesKo.size() + filesMissing.size();
+                    // on average
+                    long elapsed = endOfComputation - startOfComputation;
+                    bytesPerSecond = elapsed == 0 ? -1
+                            : Walker.this.sizeProcessed.sum() * 1000 / elapsed;
+                    filesPerSecond = elapsed == 0 ? -1
+                            : (doneFilesOk + doneFilesKo) * 1000.0 / elapsed;
+                    secondsRemaining = (int) (elapsed / 1000);
                     break;
 
                 case NEW:
@@ -366,10 +945,71 @@ public class Walker {
                     doneFilesKo = 0;
                     percentageOn10k = 0;
                     bytesPerSecond = 0;
+                    filesPerSecond = 0;
                     secondsRemaining = 0;
                     filesKo = null;
                     filesMissing = null;
             }
+            discoveredFiles = totFiles;
+            hashedFiles = doneFilesOk + doneFilesKo;
+            cachedFiles = fileList.getCacheHits();
+            directFiles = filesDirect.get();
+            Info last = Walker.this.lastDone;
+            lastDoneFile = state == State.CALCULATING && last != null ? fileList.indexOf(last) : -1;
+            boolean finished = state == State.FINISHED;
+            filesNotDirect = finished ? report.filesNotDirect : null;
+            filesAdded = finished ? report.filesAdded : null;
+            filesChanged = finished ? report.filesChanged : null;
+            filesRemoved = finished ? report.filesRemoved : null;
+        }
+    }
+
+    // The lists of the final Status, sorted once; null where they don't apply
+    private class Report {
+        final List<String> filesKo = sorted(Walker.this.filesKo.keySet());
+        final List<String> filesMissing = sorted(Walker.this.filesMissing.keySet());
+        final List<String> filesNotDirect = directIO ? sorted(Walker.this.filesNotDirect) : null;
+        final List<String> filesAdded = updating != null ? sorted(Walker.this.filesAdded) : null;
+        final List<String> filesChanged = updating != null ? sorted(Walker.this.filesChanged)
+                : null;
+        final List<String> filesRemoved = updating != null ? sorted(Walker.this.filesRemoved)
+                : null;
+    }
+
+    private static List<String> sorted(Collection<String> list) {
+        List<String> ret = new ArrayList<>(list);
+        Collections.sort(ret);
+        return Collections.unmodifiableList(ret);
+    }
+
+    public static class DeviceStatus {
+        public final String name;
+        public final boolean rotational;
+        // With tuning, the current level
+        public final int concurrency;
+        public final boolean virtual, tuned;
+        public final int totFiles, doneFiles;
+        public final long totSize, sizeProcessed;
+        public final long tailIdleMillis;
+        // Over the last seconds, and the ETA of this device; -1 until known
+        public final long bytesPerSecond;
+        public final double filesPerSecond;
+        public final int secondsRemaining;
+
+        DeviceStatus(DeviceQueue device, boolean finished) {
+            name = device.name;
+            rotational = device.rotational;
+            concurrency = device.getLimit();
+            virtual = device.virtual;
+            tuned = device.tuner != null;
+            tailIdleMillis = finished ? device.getTailIdle() : 0;
+            totFiles = device.totFiles.get();
+            doneFiles = device.doneFiles.intValue();
+            totSize = device.totSize.get();
+            sizeProcessed = device.sizeProcessed.sum();
+            bytesPerSecond = (long) device.bytesRate.getRate();
+            filesPerSecond = device.filesRate.getRate();
+            secondsRemaining = finished ? 0 : device.getSecondsRemaining();
         }
     }
 
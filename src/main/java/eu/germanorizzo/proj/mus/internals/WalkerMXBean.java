@@ -0,0 +1,88 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import javax.management.ConstructorParameters;
+import java.util.List;
+
+/**
+ * Live metrics of a Walker, registered in the platform MBean server while it works, as
+ * "eu.germanorizzo.proj.mus:type=Walker,name=walker-N".
+ */
+public interface WalkerMXBean {
+    String getState();
+
+    long getTotalBytes();
+
+    long getBytesProcessed();
+
+    long getFilesProcessed();
+
+    // Assigned to a worker, but not yet processed
+    long getFilesPending();
+
+    long getFilesKo();
+
+    long getFilesMissing();
+
+    int getActiveWorkers();
+
+    List<WorkerInfo> getWorkers();
+
+    /**
+     * Files by the time they took, from the open to the checksum: bucket 0 counts the ones
+     * under 1 ms, bucket i the ones from 2^(i-1) to 2^i ms; the last one, all the longer.
+     */
+    long[] getHashTimeHistogram();
+
+    class WorkerInfo {
+        private final String name, currentFile;
+        private final long bytes, files, bytesPerSecond;
+
+        @ConstructorParameters({"name", "currentFile", "bytes", "files", "bytesPerSecond"})
+        public WorkerInfo(String name, String currentFile, long bytes, long files,
+                          long bytesPerSecond) {
+            this.name = name;
+            this.currentFile = currentFile;
+            this.bytes = bytes;
+            this.files = files;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // null if idle
+        public String getCurrentFile() {
+            return currentFile;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getFiles() {
+            return files;
+        }
+
+        // While working
+        public long getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+    }
+}
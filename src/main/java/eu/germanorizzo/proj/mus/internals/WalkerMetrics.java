@@ -0,0 +1,139 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import eu.germanorizzo.proj.mus.internals.FileList.Info;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The WalkerMXBean of a Walker, and the histogram of the hash times. The counters are
+ * the Walker's and the devices' own, read when asked.
+ */
+class WalkerMetrics implements WalkerMXBean {
+    private static final String DOMAIN = "eu.germanorizzo.proj.mus";
+    private static final int BUCKETS = 24;
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    private final Walker walker;
+    private final LongAdder[] hashTimes = new LongAdder[BUCKETS];
+    private ObjectName name;
+
+    WalkerMetrics(Walker walker) {
+        this.walker = walker;
+        for (int i = 0; i < BUCKETS; i++)
+            hashTimes[i] = new LongAdder();
+    }
+
+    // Monitoring is optional: if it can't be registered, it's just not there
+    void register() {
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=Walker,name=walker-"
+                    + COUNTER.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(this, WalkerMXBean.class, true), name);
+            this.name = name;
+        } catch (JMException | RuntimeException ignored) {
+        }
+    }
+
+    void unregister() {
+        if (name == null)
+            return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(name);
+        } catch (JMException | RuntimeException ignored) {
+        }
+        name = null;
+    }
+
+    void hashed(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        hashTimes[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis))].increment();
+    }
+
+    public String getState() {
+        return walker.getState().name();
+    }
+
+    public long getTotalBytes() {
+        return walker.getTotalSize();
+    }
+
+    public long getBytesProcessed() {
+        return walker.getSizeProcessed();
+    }
+
+    public long getFilesProcessed() {
+        return walker.getFilesOk() + getFilesKo() + getFilesMissing();
+    }
+
+    public long getFilesPending() {
+        long ret = 0;
+        for (DeviceQueue device : walker.getDevices())
+            ret += device.totFiles.get() - device.doneFiles.sum();
+        return ret;
+    }
+
+    public long getFilesKo() {
+        return walker.getFilesKo();
+    }
+
+    public long getFilesMissing() {
+        return walker.getFilesMissing();
+    }
+
+    public int getActiveWorkers() {
+        int ret = 0;
+        for (DeviceQueue device : walker.getDevices())
+            for (DeviceQueue.Worker worker : device.workerStats)
+                if (worker.current != null)
+                    ret++;
+        return ret;
+    }
+
+    public List<WorkerInfo> getWorkers() {
+        List<WorkerInfo> ret = new ArrayList<>();
+        for (DeviceQueue device : walker.getDevices())
+            for (DeviceQueue.Worker worker : device.workerStats) {
+                Info current = worker.current;
+                long bytes = worker.bytes;
+                long busy = worker.getBusyNanos();
+                ret.add(new WorkerInfo(worker.name,
+                        current == null ? null : current.getPath().toString(), bytes,
+                        worker.files, busy == 0 ? 0 : (long) (bytes * 1e9 / busy)));
+            }
+        return ret;
+    }
+
+    public long[] getHashTimeHistogram() {
+        long[] ret = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+            ret[i] = hashTimes[i].sum();
+        return ret;
+    }
+}
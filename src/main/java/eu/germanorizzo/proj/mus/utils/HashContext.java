@@ -0,0 +1,406 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.utils;
+
+import com.sun.nio.file.ExtendedOpenOption;
+import eu.germanorizzo.proj.mus.Mus;
+import eu.germanorizzo.proj.mus.digest.Digester;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Hashing state owned by a single thread (i.e. a Walker worker): the digests, the read buffer
+ * and the output are reused from file to file, so that the steady state doesn't allocate.
+ * Not thread safe.
+ */
+public class HashContext {
+    private static final int BUF_SIZE = 65536;
+    // Files at least this big are hashed through memory-mapped windows
+    private static final long MAP_THRESHOLD = 8 << 20;
+    private static final int MAP_WINDOW = 64 << 20;
+    private static final int MAP_STEP = 1 << 20;
+    // Of the buffer, and of the reads, for O_DIRECT: the block size of the filesystem, if
+    // known, else a multiple of the usual ones. Beyond the maximum, the page cache is used.
+    private static final int DEFAULT_ALIGNMENT = 4096;
+    private static final int MAX_ALIGNMENT = 1 << 20;
+    private static final int MAX_DIGEST_LEN = 64;
+    private static final byte[] LEAF_PREFIX = new byte[]{0};
+    private static final byte[] NODE_PREFIX = new byte[]{1};
+
+    private final Digester[] digests = new Digester[Mus.ALGO_BY_FORMAT.length];
+    // Grown if a filesystem needs a bigger alignment; at least BUF_SIZE
+    private ByteBuffer buffer = alignedBuffer(DEFAULT_ALIGNMENT);
+    private int bufferAlignment = DEFAULT_ALIGNMENT;
+    private final byte[] digest = new byte[MAX_DIGEST_LEN];
+    private final char[] hex = new char[MAX_DIGEST_LEN * 2];
+    private final boolean mapFiles;
+    private int digestLen;
+    private Throttle throttle;
+    private boolean direct, openedDirect;
+    // 0 to look it up for each file; the last one found, by directory
+    private int alignment;
+    private Path lastDir;
+    private int lastDirAlignment;
+    // The channel whose first buffer was read by open(), still in the buffer
+    private FileChannel prefetched;
+    private int prefetchedLen;
+    // While timing, the time spent reading and digesting is summed (i.e. for JFR events)
+    private boolean timing;
+    private long readNanos, digestNanos;
+
+    public HashContext() {
+        this(true);
+    }
+
+    /**
+     * If mapFiles is false, big files are read as well, and not memory-mapped: a virtual
+     * thread that waits for a page fault blocks its carrier thread, one that waits for a
+     * read doesn't.
+     */
+    public HashContext(boolean mapFiles) {
+        this.mapFiles = mapFiles;
+    }
+
+    // Makes the reads wait for the throttle, that may be shared with other contexts
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Reads the files bypassing the page cache (O_DIRECT), so that a scrub doesn't evict the
+     * data of the other programs, that it wouldn't reuse anyway: open() tries to open them so,
+     * and all the reads are aligned. The files are not memory-mapped.
+     */
+    public void setDirect(boolean direct) {
+        this.direct = direct;
+    }
+
+    /**
+     * For setDirect(true): the alignment of the reads, alignmentOf() the store of all the
+     * files that will be hashed; 0 (the default) to look it up for each file.
+     */
+    public void setAlignment(int alignment) {
+        this.alignment = alignment;
+    }
+
+    /**
+     * The block size of a store, to align the direct reads to; -1 if they can't be, and the
+     * files are to be read through the page cache.
+     */
+    public static int alignmentOf(FileStore store) {
+        long ret;
+        try {
+            ret = store.getBlockSize();
+        } catch (IOException | UnsupportedOperationException e) {
+            return DEFAULT_ALIGNMENT;
+        }
+        return ret > 0 && ret <= MAX_ALIGNMENT && Long.bitCount(ret) == 1 ? (int) ret : -1;
+    }
+
+    /**
+     * Opens a file for hashing; with setDirect(true), bypassing the page cache if the
+     * filesystem allows it (see isOpenedDirect()), else normally.
+     */
+    public FileChannel open(Path file) throws IOException {
+        openedDirect = false;
+        prefetched = null;
+        if (direct) {
+            FileChannel ret = openDirect(file);
+            if (ret != null)
+                return ret;
+        }
+        return FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    /* Some filesystems accept O_DIRECT when opening, and then fail the reads (i.e. with
+     * EINVAL, if the alignment is not the one they need): the first buffer is read here, and
+     * kept for hash(). null if the file is to be opened normally. */
+    private FileChannel openDirect(Path file) throws IOException {
+        int alignment = this.alignment != 0 ? this.alignment : alignmentOf(file.getParent());
+        if (alignment < 0)
+            return null;
+        if (alignment > bufferAlignment) {
+            buffer = alignedBuffer(alignment);
+            bufferAlignment = alignment;
+        }
+
+        FileChannel ret;
+        try {
+            ret = FileChannel.open(file, StandardOpenOption.READ, ExtendedOpenOption.DIRECT);
+        } catch (NoSuchFileException | AccessDeniedException e) {
+            throw e;
+        } catch (IOException | UnsupportedOperationException e) {
+            // i.e. EINVAL, on filesystems that don't support it
+            return null;
+        }
+        try {
+            if (throttle != null)
+                throttle.acquire(Math.min(buffer.capacity(), ret.size()));
+            long t0 = timing ? System.nanoTime() : 0;
+            prefetchedLen = ret.read(buffer.clear(), 0);
+            if (timing)
+                readNanos += System.nanoTime() - t0;
+        } catch (IOException e) {
+            ret.close();
+            return null;
+        }
+        prefetched = ret;
+        openedDirect = true;
+        return ret;
+    }
+
+    private int alignmentOf(Path dir) {
+        if (dir == null)
+            return DEFAULT_ALIGNMENT;
+        if (!dir.equals(lastDir)) {
+            try {
+                lastDirAlignment = alignmentOf(Files.getFileStore(dir));
+            } catch (IOException e) {
+                lastDirAlignment = DEFAULT_ALIGNMENT;
+            }
+            lastDir = dir;
+        }
+        return lastDirAlignment;
+    }
+
+    private static ByteBuffer alignedBuffer(int alignment) {
+        int size = Math.max(BUF_SIZE, alignment);
+        return ByteBuffer.allocateDirect(size + alignment).alignedSlice(alignment);
+    }
+
+    // If the last file given by open() bypasses the page cache
+    public boolean isOpenedDirect() {
+        return openedDirect;
+    }
+
+    // Starts summing the time spent in reads and in digesting, from zero
+    public void startTiming() {
+        timing = true;
+        readNanos = digestNanos = 0;
+    }
+
+    public void stopTiming() {
+        timing = false;
+    }
+
+    public long getReadNanos() {
+        return readNanos;
+    }
+
+    // With memory-mapped files, it includes the reads
+    public long getDigestNanos() {
+        return digestNanos;
+    }
+
+    /**
+     * Hashes a file; the result is then available through toHex() and matches().
+     */
+    public void hash(int format, Path file, IntConsumer onAdvancement) throws IOException {
+        try (FileChannel ch = open(file)) {
+            hash(format, ch, onAdvancement);
+        }
+    }
+
+    // As above, on a file already open; the channel is not closed
+    public void hash(int format, FileChannel ch, IntConsumer onAdvancement) throws IOException {
+        long size = ch.size();
+        long chunkSize = Mus.CHUNK_SIZE_BY_FORMAT[format];
+        if (chunkSize < 0) {
+            Digester m = getDigest(format);
+            update(m, ch, 0, size, onAdvancement);
+            digestLen = m.digest(digest, 0);
+            return;
+        }
+
+        int chunks = chunks(format, size);
+        if (chunks == 1) {
+            digestLen = hashChunk(format, ch, 0, onAdvancement, digest, 0);
+            return;
+        }
+        byte[] leaves = new byte[chunks * getDigest(format).getLength()];
+        for (int i = 0; i < chunks; i++)
+            hashChunk(format, ch, i, onAdvancement, leaves, i * (leaves.length / chunks));
+        combine(format, leaves, chunks);
+    }
+
+    /* Tree formats: the file is split in chunks of CHUNK_SIZE_BY_FORMAT bytes (an empty file
+     * has one empty chunk). Each chunk is a leaf, hashed as H(0x00 || chunk); then, level by
+     * level, each couple of nodes is hashed as H(0x01 || left || right), an odd node being
+     * carried to the next level as it is. The root is the checksum of the file. */
+
+    public static int chunks(int format, long size) {
+        long chunkSize = Mus.CHUNK_SIZE_BY_FORMAT[format];
+        return size == 0 ? 1 : (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Hashes a chunk (a leaf of the tree), writing it to out; returns its length. The channel
+     * is only read with positional reads, so it can be shared among threads.
+     */
+    public int hashChunk(int format, FileChannel ch, int chunk, IntConsumer onAdvancement,
+                         byte[] out, int outOffset) throws IOException {
+        long chunkSize = Mus.CHUNK_SIZE_BY_FORMAT[format];
+        long start = chunk * chunkSize;
+        Digester m = getDigest(format);
+        m.update(LEAF_PREFIX, 0, 1);
+        update(m, ch, start, Math.min(start + chunkSize, ch.size()), onAdvancement);
+        return m.digest(out, outOffset);
+    }
+
+    /**
+     * Computes the root of the tree from its leaves; the array is overwritten. The result is
+     * then available through toHex() and matches().
+     */
+    public void combine(int format, byte[] leaves, int count) throws IOException {
+        Digester m = getDigest(format);
+        int len = leaves.length / count;
+        for (int n = count; n > 1; n = (n + 1) / 2) {
+            for (int i = 0; i < n / 2; i++) {
+                m.update(NODE_PREFIX, 0, 1);
+                m.update(leaves, 2 * i * len, 2 * len);
+                m.digest(leaves, i * len);
+            }
+            if (n % 2 == 1)
+                System.arraycopy(leaves, (n - 1) * len, leaves, (n / 2) * len, len);
+        }
+        System.arraycopy(leaves, 0, digest, 0, len);
+        digestLen = len;
+    }
+
+    private void update(Digester m, FileChannel ch, long start, long end,
+                        IntConsumer onAdvancement) throws IOException {
+        try {
+            if (mapFiles && !direct && end - start >= MAP_THRESHOLD)
+                updateMapped(m, ch, start, end, onAdvancement);
+            else
+                updateBuffered(m, ch, start, end, onAdvancement);
+        } catch (IOException | RuntimeException e) {
+            m.reset();
+            throw e;
+        }
+    }
+
+    public String toHex() {
+        for (int i = 0; i < digestLen; i++) {
+            hex[i * 2] = MiscUtils.HEX_CHARS[(digest[i] >> 4) & 15];
+            hex[i * 2 + 1] = MiscUtils.HEX_CHARS[digest[i] & 15];
+        }
+        return new String(hex, 0, digestLen * 2);
+    }
+
+    // Compares the last digest with an hex one, without converting it
+    public boolean matches(String expected) {
+        if (expected.length() != digestLen * 2)
+            return false;
+        for (int i = 0; i < digestLen; i++)
+            if (expected.charAt(i * 2) != MiscUtils.HEX_CHARS[(digest[i] >> 4) & 15]
+                    || expected.charAt(i * 2 + 1) != MiscUtils.HEX_CHARS[digest[i] & 15])
+                return false;
+        return true;
+    }
+
+    // Compares the last digest with a raw one
+    public boolean matches(byte[] expected, int offset) {
+        return Arrays.equals(digest, 0, digestLen, expected, offset, offset + digestLen);
+    }
+
+    // Copies the last digest to out; returns its length
+    public int getDigest(byte[] out, int offset) {
+        System.arraycopy(digest, 0, out, offset, digestLen);
+        return digestLen;
+    }
+
+    private Digester getDigest(int format) throws IOException {
+        if (digests[format] == null)
+            digests[format] = Mus.ALGO_BY_FORMAT[format].newDigester();
+        return digests[format];
+    }
+
+    private void updateMapped(Digester m, FileChannel ch, long start, long end,
+                              IntConsumer onAdvancement) throws IOException {
+        try {
+            for (long pos = start; pos < end; pos += MAP_WINDOW) {
+                long t0 = timing ? System.nanoTime() : 0;
+                MappedByteBuffer mbb = ch.map(FileChannel.MapMode.READ_ONLY, pos,
+                        Math.min(MAP_WINDOW, end - pos));
+                if (timing)
+                    readNanos += System.nanoTime() - t0;
+                // fed in steps, to give a smoother feedback
+                for (int from = 0; from < mbb.capacity(); from += MAP_STEP) {
+                    int to = Math.min(from + MAP_STEP, mbb.capacity());
+                    if (throttle != null)
+                        throttle.acquire(to - from);
+                    mbb.limit(to).position(from);
+                    long t1 = timing ? System.nanoTime() : 0;
+                    m.update(mbb);
+                    if (timing)
+                        digestNanos += System.nanoTime() - t1;
+                    if (onAdvancement != null)
+                        onAdvancement.accept(to - from);
+                }
+            }
+        } catch (InternalError e) {
+            // the file was truncated while mapped
+            throw new IOException("Error reading mapped file: " + e.getMessage(), e);
+        }
+    }
+
+    private void updateBuffered(Digester m, FileChannel ch, long start, long end,
+                                IntConsumer onAdvancement) throws IOException {
+        long pos = start;
+        while (pos < end) {
+            int len = (int) Math.min(buffer.capacity(), end - pos);
+            long t0 = timing ? System.nanoTime() : 0, t1 = t0;
+            int read;
+            if (ch == prefetched && pos == 0)
+                read = prefetchedLen; // by open()
+            else {
+                // a direct read must be of whole blocks, even past the end: the excess is
+                // ignored
+                buffer.clear().limit(direct ? buffer.capacity() : len);
+                if (throttle != null)
+                    throttle.acquire(len);
+                t0 = timing ? System.nanoTime() : 0;
+                read = ch.read(buffer, pos);
+                t1 = timing ? System.nanoTime() : 0;
+            }
+            prefetched = null;
+            if (read < 0)
+                break;
+            read = Math.min(read, len);
+            pos += read;
+            m.update(buffer.flip().limit(read));
+            if (timing) {
+                readNanos += t1 - t0;
+                digestNanos += System.nanoTime() - t1;
+            }
+            if (onAdvancement != null)
+                onAdvancement.accept(read);
+        }
+    }
+}
@@ -17,11 +17,10 @@
 package eu.germanorizzo.proj.mus.utils;
 
 import eu.germanorizzo.proj.mus.Mus;
+import eu.germanorizzo.proj.mus.digest.Digester;
 
 import java.io.*;
 import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.function.IntConsumer;
 
 public class MiscUtils {
@@ -29,7 +28,7 @@ public class MiscUtils {
 
     public static final String CRLF = "\r\n";
     public static final char TAB = '\t';
-    private static final char[] HEX_CHARS = "0123456789ABCDEF".toCharArray();
+    static final char[] HEX_CHARS = "0123456789ABCDEF".toCharArray();
     private static final String FMT_FLOAT_FOR_SIZE = "%.1f %s";
     private static final float KB = 1 << 10;
     private static final float MB = 1 << 20;
@@ -46,7 +45,7 @@ public class MiscUtils {
         }
     }
 
-    private static String bytes2armored(byte[] bytes) {
+    public static String bytes2armored(byte[] bytes) {
         StringBuilder sb = new StringBuilder();
         for (byte b : bytes) {
             sb.append(HEX_CHARS[(b >> 4) & 15]);
@@ -55,6 +54,21 @@ public class MiscUtils {
         return sb.toString();
     }
 
+    // null if it's not hex
+    public static byte[] armored2bytes(String s) {
+        if (s.length() % 2 != 0)
+            return null;
+        byte[] ret = new byte[s.length() / 2];
+        for (int i = 0; i < ret.length; i++) {
+            int hi = Character.digit(s.charAt(i * 2), 16);
+            int lo = Character.digit(s.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0)
+                return null;
+            ret[i] = (byte) ((hi << 4) | lo);
+        }
+        return ret;
+    }
+
     public static String formatTime(int seconds) {
         if (seconds < 0)
             return "--";
@@ -89,23 +103,28 @@ public class MiscUtils {
         return String.format(FMT_FLOAT_FOR_SIZE, bytes / GB, "Gb");
     }
 
+    /**
+     * The flat digest of a stream. Not for the tree formats, whose checksum is computed on the
+     * chunks of a file: see HashContext.
+     */
     public static String computeChecksum(int format, InputStream is, IntConsumer onAdvancement)
             throws IOException {
-        try {
-            MessageDigest m = MessageDigest.getInstance(Mus.ALGO_BY_FORMAT[format]);
-
-            int read;
-            byte[] buf = new byte[BUF_SIZE];
-            while ((read = is.read(buf)) >= 0) {
-                m.update(buf, 0, read);
-                if (onAdvancement != null)
-                    onAdvancement.accept(read);
-            }
-
-            return MiscUtils.bytes2armored(m.digest());
-        } catch (NoSuchAlgorithmException e) {
-            throw new IOException(e);
+        if (Mus.CHUNK_SIZE_BY_FORMAT[format] >= 0)
+            throw new IllegalArgumentException("Format " + format
+                    + " is a tree format: use HashContext");
+        Digester m = Mus.ALGO_BY_FORMAT[format].newDigester();
+
+        int read;
+        byte[] buf = new byte[BUF_SIZE];
+        while ((read = is.read(buf)) >= 0) {
+            m.update(buf, 0, read);
+            if (onAdvancement != null)
+                onAdvancement.accept(read);
         }
+
+        byte[] digest = new byte[m.getLength()];
+        m.digest(digest, 0);
+        return MiscUtils.bytes2armored(digest);
     }
 
     public static int countChars(String str, char c) {
@@ -115,15 +134,4 @@ public class MiscUtils {
                 count++;
         return count;
     }
-
-    public static String getLastLineOfFile(File file) throws IOException {
-        String lastLine = null;
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String currentLine;
-            while ((currentLine = reader.readLine()) != null) {
-                lastLine = currentLine;
-            }
-        }
-        return lastLine;
-    }
 }
@@ -0,0 +1,94 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the reads to a number of bytes and/or of operations per second, shared among any
+ * number of threads (token buckets, with a burst of BURST worth of each). The limits can be
+ * changed at any time; 0 means no limit.
+ */
+public class Throttle {
+    private static final long BURST = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private volatile long bytesPerSecond;
+    private volatile int opsPerSecond;
+    // When the buckets will be full again, if no one reads; behind now if they already are
+    private long bytesFull, opsFull;
+
+    public Throttle() {
+        this(0, 0);
+    }
+
+    public Throttle(long bytesPerSecond, int opsPerSecond) {
+        setLimits(bytesPerSecond, opsPerSecond);
+    }
+
+    public void setLimits(long bytesPerSecond, int opsPerSecond) {
+        if (bytesPerSecond < 0 || opsPerSecond < 0)
+            throw new IllegalArgumentException("Negative limit");
+        this.bytesPerSecond = bytesPerSecond;
+        this.opsPerSecond = opsPerSecond;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public int getOpsPerSecond() {
+        return opsPerSecond;
+    }
+
+    public boolean isLimited() {
+        return bytesPerSecond > 0 || opsPerSecond > 0;
+    }
+
+    /**
+     * Waits until a read of the given size can be done.
+     */
+    public void acquire(long bytes) throws IOException {
+        if (!isLimited())
+            return;
+        long wait = reserve(bytes, System.nanoTime());
+        if (wait > 0)
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+    }
+
+    // Takes the tokens, even if they're not there yet: returns how long to wait for them
+    private synchronized long reserve(long bytes, long now) {
+        long wait = 0;
+        long bps = bytesPerSecond;
+        if (bps > 0) {
+            bytesFull = Math.max(bytesFull, now - BURST) + (long) (bytes * (double) SECOND / bps);
+            wait = bytesFull - now;
+        }
+        int ops = opsPerSecond;
+        if (ops > 0) {
+            opsFull = Math.max(opsFull, now - BURST) + SECOND / ops;
+            wait = Math.max(wait, opsFull - now);
+        }
+        return wait;
+    }
+}
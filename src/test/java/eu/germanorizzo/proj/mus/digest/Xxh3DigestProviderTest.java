@@ -0,0 +1,136 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.digest;
+
+import eu.germanorizzo.proj.mus.utils.MiscUtils;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Known answers of XXH3-128 (seed 0, default secret), computed with libxxhash 0.8.1 on the
+ * bytes of input(): a length for each branch of the algorithm, and its edges.
+ */
+public class Xxh3DigestProviderTest {
+    private static final Object[][] KNOWN = {
+            {0, "99AA06D3014798D86001C324468D497F"},
+            // 1-3
+            {1, "495B62073EF70CA44C5CCA45D0F4811F"},
+            {2, "12B2847AA0DE5AAAA7E250C97710FF27"},
+            {3, "46F66CB93538156515F7093B173D005C"},
+            // 4-8
+            {4, "7FEFEEFFB4D0EAB3B987CA5D9241572A"},
+            {5, "2FBB16712B4BF1D5752A86982353F4F3"},
+            {8, "803C675A846CC6C256BB836CEB6D4BAA"},
+            // 9-16
+            {9, "D46556872D230F224376673580310154"},
+            {12, "48480C880E4976FD2F65DBAB90C80AF2"},
+            {16, "650FE308C566747DF853DD94614DFA07"},
+            // 17-128
+            {17, "18217300B5132D5A78C349FE81B2F26C"},
+            {32, "3220FF5FE507B3C05726E079716C6A62"},
+            {64, "F9BFA77DA0891A9636C5F7E547426BC4"},
+            {100, "7F5A1F03462E52B4D61D8DBFF22D515F"},
+            {128, "B4F87B99D2DB8A511E04FAD9F0CACB4D"},
+            // 129-240
+            {129, "6881633650CD8924C51BC887976AEF63"},
+            {200, "8D8629A1AEF9EF9060EA018811F9A437"},
+            {240, "DE57AAB31E77A2FF93E173833F75AB66"},
+            // > 240: stripes of 64 bytes, blocks of 1024
+            {241, "92B991A7192F3F080B3B630948CE4A00"},
+            {255, "3E68B7E415CE7E5C89932170686CDD9A"},
+            {256, "24EE30633CA52C6AEC85B75BAFE6CA74"},
+            {257, "0F849A4F3E33B6C212EF0FF633841459"},
+            {1023, "8E8ED756AA1F01FAF0D330CE2B3300FB"},
+            {1024, "4C17271C906DF79223BC880EBF0D29C6"},
+            {1025, "70A4EB1B9691D77FC09FDFBC398C7D82"},
+            {2048, "B318976B177A38C719F6F9C987331373"},
+            {4096, "49D3842B33D51E8AA3C19F8174CDE0BB"},
+            {65536, "2C7DFEEA59D29A74CF188822048798B0"},
+            {100000, "8CE7A24D31CD94B1CCF90DF7E7E37036"},
+            {1048579, "F88290DCB1EF0B5EBD1D0E8FC15F8450"},
+    };
+
+    // Split points of the updates, around the internal buffer and the stripes
+    private static final int[] STEPS = {1, 7, 63, 64, 65, 255, 256, 257, 1000, 4096};
+
+    private final Digester digester = new Xxh3DigestProvider().newDigester();
+
+    @Test
+    public void singleUpdate() {
+        for (Object[] known : KNOWN) {
+            byte[] in = input((Integer) known[0]);
+            digester.update(in, 0, in.length);
+            assertEquals("Length " + in.length, known[1], digest());
+        }
+    }
+
+    @Test
+    public void splitUpdates() {
+        for (Object[] known : KNOWN) {
+            byte[] in = input((Integer) known[0]);
+            for (int step : STEPS) {
+                for (int pos = 0; pos < in.length; pos += step)
+                    digester.update(in, pos, Math.min(step, in.length - pos));
+                assertEquals("Length " + in.length + ", steps of " + step, known[1], digest());
+            }
+        }
+    }
+
+    @Test
+    public void byteBuffers() {
+        for (Object[] known : KNOWN) {
+            byte[] in = input((Integer) known[0]);
+            ByteBuffer direct = ByteBuffer.allocateDirect(in.length).put(in).flip();
+            int half = in.length / 2;
+            digester.update(direct.limit(half));
+            digester.update(direct.limit(in.length));
+            assertEquals("Length " + in.length + ", direct", known[1], digest());
+
+            // from an offset in an array, as a slice
+            byte[] padded = new byte[in.length + 2];
+            Arrays.fill(padded, (byte) 42);
+            System.arraycopy(in, 0, padded, 1, in.length);
+            digester.update(ByteBuffer.wrap(padded, 1, in.length).slice());
+            assertEquals("Length " + in.length + ", heap", known[1], digest());
+        }
+    }
+
+    @Test
+    public void resetDiscardsInput() {
+        byte[] in = input(1000);
+        digester.update(in, 0, in.length);
+        digester.reset();
+        assertEquals(KNOWN[0][1], digest());
+    }
+
+    private String digest() {
+        byte[] out = new byte[digester.getLength()];
+        digester.digest(out, 0);
+        return MiscUtils.bytes2armored(out);
+    }
+
+    private static byte[] input(int len) {
+        byte[] ret = new byte[len];
+        for (int i = 0; i < len; i++)
+            ret[i] = (byte) (i * 31 + 7);
+        return ret;
+    }
+}
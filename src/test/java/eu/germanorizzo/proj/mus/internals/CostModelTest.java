@@ -0,0 +1,89 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CostModelTest {
+    private static final long PER_FILE = TimeUnit.MILLISECONDS.toNanos(8);
+    private static final double PER_BYTE = 1e9 / (150 << 20); // 150 Mb/s
+    private static final long QUERY_EVERY = TimeUnit.SECONDS.toNanos(1);
+
+    private long now, doneFiles, doneBytes;
+
+    @Test
+    public void unknownBeforeAnySample() {
+        CostModel model = new CostModel(() -> doneFiles, () -> doneBytes, () -> now);
+        model.start();
+        assertEquals(-1, model.secondsRemaining(10, 1000));
+        assertEquals(0, model.secondsRemaining(0, 0));
+    }
+
+    /**
+     * The files are dispatched largest first, as DeviceQueue does: big files at the start,
+     * then thousands of small ones, where the time goes to opening them. A single worker
+     * opens each file, then reads it; the estimate is read every second.
+     */
+    @Test
+    public void largestFirst() {
+        // Sizes spread evenly on a log scale, from 1 Kb to 16 Mb
+        Random rnd = new Random(42);
+        long[] sizes = new long[20000];
+        for (int i = 0; i < sizes.length; i++)
+            sizes[i] = (long) Math.exp(Math.log(1024) + rnd.nextDouble() * Math.log(1 << 14));
+        Arrays.sort(sizes);
+        long totBytes = 0;
+        for (long size : sizes)
+            totBytes += size;
+        long totTime = sizes.length * PER_FILE + (long) (totBytes * PER_BYTE);
+
+        CostModel model = new CostModel(() -> doneFiles, () -> doneBytes, () -> now);
+        model.start();
+        double maxError = 0;
+        // Largest first
+        for (int current = sizes.length - 1; current >= 0; current--) {
+            long size = sizes[current];
+            long fileEnd = now + PER_FILE + (long) (size * PER_BYTE);
+            long startBytes = doneBytes;
+            while (now < fileEnd) {
+                long next = Math.min(fileEnd, (now / QUERY_EVERY + 1) * QUERY_EVERY);
+                // The bytes are counted while reading, the file at the end
+                doneBytes = startBytes + Math.max(0,
+                        (long) ((size * PER_BYTE - (fileEnd - next)) / PER_BYTE));
+                now = next;
+                if (now % QUERY_EVERY == 0 && now < fileEnd) {
+                    int eta = model.secondsRemaining(sizes.length - doneFiles,
+                            totBytes - doneBytes);
+                    // Relative to the whole run, after the first quarter
+                    if (now > totTime / 4)
+                        maxError = Math.max(maxError,
+                                Math.abs(eta - (totTime - now) / 1e9) * 1e9 / totTime);
+                }
+            }
+            doneBytes = startBytes + size;
+            doneFiles++;
+        }
+        assertTrue("error " + maxError, maxError < 0.05);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import org.junit.Test;
+
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+public class FileListTest {
+    // Fullwidth "full", before the emoji in UTF-8 bytes, after it in UTF-16 chars
+    private static final String FULL = "\uFF46\uFF55\uFF4C\uFF4C";
+    private static final String EMOJI = "\uD83D\uDE00";
+
+    /**
+     * The order must be the one of Path.compareTo(), also for the names outside of the BMP.
+     */
+    @Test
+    public void sortedAsPaths() {
+        Path root = Path.of("").toAbsolutePath().getRoot().resolve("r");
+        assumeTrue("The platform charset can't encode the names", encodable(root, FULL + EMOJI));
+        List<Path> files = new ArrayList<>();
+        for (String name : new String[]{FULL, EMOJI, "a", "a.txt", "a-b", "\u00E9", "z"}) {
+            files.add(root.resolve(name));
+            files.add(root.resolve("d").resolve(name));
+            files.add(root.resolve(FULL).resolve(name));
+            files.add(root.resolve(EMOJI).resolve(name));
+            files.add(root.resolve("a").resolve("b").resolve(name));
+            files.add(root.resolve("a-b").resolve(name));
+        }
+        Collections.shuffle(files, new Random(42));
+
+        FileList list = new FileList();
+        for (Path p : files)
+            list.addFile(p);
+        list.seal();
+
+        List<Path> expected = new ArrayList<>(files);
+        Collections.sort(expected);
+        List<Path> actual = new ArrayList<>();
+        for (int i = 0; i < list.size(); i++)
+            actual.add(list.getFileInfo(i).getPath());
+        assertEquals(expected, actual);
+        for (int i = 0; i < list.size(); i++)
+            assertEquals(i, list.indexOf(list.getFileInfo(i)));
+    }
+
+    private static boolean encodable(Path dir, String name) {
+        try {
+            dir.resolve(name);
+            return true;
+        } catch (InvalidPathException e) {
+            return false;
+        }
+    }
+}
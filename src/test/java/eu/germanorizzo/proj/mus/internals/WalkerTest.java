@@ -0,0 +1,96 @@
+/*
+    This file is part of Mus
+
+    Mus is free software: you can redistribute it and/or modify it
+    under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Mus is distributed in the hope that it will be useful, but
+    WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with Kryonist.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.germanorizzo.proj.mus.internals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WalkerTest {
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("mus");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (var walk = Files.walk(dir)) {
+            for (Path p : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(p);
+        }
+    }
+
+    /**
+     * Updating some of the roots keeps the entries of the others, even if not walked.
+     */
+    @Test
+    public void updateSubsetOfRoots() throws IOException {
+        write("u/A/x", "x");
+        write("u/B/y", "y");
+        write("u/top", "t");
+        Path manifest = dir.resolve("m.mu5");
+        Walker walker = Walker.forFiles(2, dir.resolve("u").toString());
+        run(walker);
+        try (OutputStream os = Files.newOutputStream(manifest)) {
+            walker.getFileList().writeToFile(os);
+        }
+
+        Files.delete(dir.resolve("u/A/x"));
+        write("u/A/x2", "x2");
+        walker = Walker.forUpdate(manifest.toString(), dir.resolve("u/A").toString());
+        Walker.Status status = run(walker);
+
+        assertEquals(List.of(dir.resolve("u/A/x2").toString()), status.filesAdded);
+        assertEquals(List.of(dir.resolve("u/A/x").toString()), status.filesRemoved);
+        assertEquals(List.of(), status.filesChanged);
+        assertEquals(Set.of("u/A/x2", "u/B/y", "u/top"), paths(walker.getFileList()));
+        assertEquals(0, status.doneFilesKo);
+    }
+
+    private void write(String name, String content) throws IOException {
+        Path p = dir.resolve(name);
+        Files.createDirectories(p.getParent());
+        Files.writeString(p, content);
+    }
+
+    private static Walker.Status run(Walker walker) {
+        List<Exception> errors = new ArrayList<>();
+        walker.setOnError(errors::add);
+        walker.work(1);
+        assertTrue("Errors: " + errors, errors.isEmpty());
+        return walker.getStatus();
+    }
+
+    private Set<String> paths(FileList list) {
+        Set<String> ret = new HashSet<>();
+        for (int i = 0; i < list.size(); i++)
+            ret.add(dir.relativize(list.getFileInfo(i).getPath()).toString()
+                    .replace(dir.getFileSystem().getSeparator(), "/"));
+        return ret;
+    }
+}